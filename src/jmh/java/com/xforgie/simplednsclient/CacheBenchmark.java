@@ -0,0 +1,127 @@
+package com.xforgie.simplednsclient;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Cache lookups and inserts on a cache holding a realistic number of names, alone and
+ * with many threads reading and writing at once.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+    private static final int NAMES = 1 << 16;
+
+    // a few names that every thread reads, like the popular names of a real workload
+    private static final int HOT_NAMES = 16;
+
+    // replacements are spread over fewer names, since each one leaves an entry on the
+    // expiry wheel until the record would have expired
+    private static final int REPLACED_NAMES = 256;
+
+    private static final long TTL = 86400;
+
+    private Cache cache;
+    private ResourceRecord[] records;
+    private SearchNode[] missing;
+
+    // each thread walks the names in its own random order
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int state = ThreadLocalRandom.current().nextInt() | 1;
+
+        // xorshift, so picking a name costs next to nothing
+        private int next(int bound) {
+            state ^= state << 13;
+            state ^= state >>> 17;
+            state ^= state << 5;
+            return state & (bound - 1);
+        }
+    }
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+
+        cache = Cache.getCache();
+        records = new ResourceRecord[NAMES];
+        missing = new SearchNode[NAMES];
+
+        for (int i = 0; i < NAMES; i++) {
+            byte[] address = { 10, (byte) (i >> 16), (byte) (i >> 8), (byte) i };
+            records[i] = new ResourceRecord("host" + i + ".example.com", RecordType.A, TTL,
+                    InetAddress.getByAddress(address));
+            cache.addResourceRecord(records[i]);
+            missing[i] = new SearchNode("missing" + i + ".example.com", RecordType.A);
+        }
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> hit(Cursor cursor) {
+        return cache.getResourceRecords(records[cursor.next(NAMES)].getNode());
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> miss(Cursor cursor) {
+        return cache.getResourceRecords(missing[cursor.next(NAMES)]);
+    }
+
+    // a record that arrives again, as glue and answers do all the time
+    @Benchmark
+    public void addExisting(Cursor cursor) {
+        cache.addResourceRecord(records[cursor.next(NAMES)]);
+    }
+
+    // a fresh copy of a record replaces the cached one
+    @Benchmark
+    public void addReplacing(Cursor cursor) {
+        cache.addResourceRecord(records[cursor.next(REPLACED_NAMES)].withTTL(TTL + 1));
+    }
+
+    // every thread reading the same few names contends on their hit counters
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Set<ResourceRecord> hotRead(Cursor cursor) {
+        return cache.getResourceRecords(records[cursor.next(HOT_NAMES)].getNode());
+    }
+
+    // readers and writers on the same names at once
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public Set<ResourceRecord> read(Cursor cursor) {
+        return cache.getResourceRecords(records[cursor.next(REPLACED_NAMES)].getNode());
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void write(Cursor cursor) {
+        cache.addResourceRecord(records[cursor.next(REPLACED_NAMES)].withTTL(TTL + 1));
+    }
+}
@@ -0,0 +1,525 @@
+package com.xforgie.simplednsclient;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * A fake DNS hierarchy for load tests: a root server, one server per TLD, and a few leaf
+ * servers that are authoritative for every second level zone. Names look like
+ * host7.domain12.tld3 and are computed rather than stored, so zones can be as large as
+ * needed. Replies can be delayed, dropped and truncated; truncated and oversized answers
+ * are served in full over TCP.
+ *
+ * Every server listens on the same port, since the resolver queries all nameservers on one
+ * port: the root on 127.0.1.1, the TLDs on 127.0.2.x and the leaves on 127.0.3.x. Linux
+ * routes all of 127/8 to the loopback interface; other systems need those addresses aliased.
+ *
+ */
+
+public class FakeHierarchy implements Closeable {
+
+    private static final int MAX_MESSAGE_SIZE = 0xFFFF;
+    private static final int MAX_SERVERS = 254;
+
+    // the payload this server advertises, and the most it sends over UDP
+    private static final int UDP_PAYLOAD_SIZE = 1232;
+
+    private static final long DELEGATION_TTL = 86400;
+    private static final long NEGATIVE_TTL = 60;
+
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_REFUSED = 5;
+
+    private static final int FLAG_RESPONSE = 0x8000;
+    private static final int FLAG_AUTHORITATIVE = 0x0400;
+    private static final int FLAG_TRUNCATED = 0x0200;
+    private static final int FLAG_RD = 0x0100;
+
+    private enum Role {
+        ROOT, TLD, LEAF
+    }
+
+    private static class Server {
+
+        private final Role role;
+        private final int index;
+        private final InetAddress address;
+
+        private DatagramChannel udp;
+        private ServerSocketChannel tcp;
+
+        private Server(Role role, int index, InetAddress address) {
+            this.role = role;
+            this.index = index;
+            this.address = address;
+        }
+    }
+
+    private final int port;
+    private final int tlds;
+    private final int domainsPerTld;
+    private final int hostsPerDomain;
+
+    private int leafServers = 4;
+    private int addressesPerName = 1;
+    private long ttl = 300;
+    private long latencyMillis;
+    private long jitterMillis;
+    private double lossPercent;
+    private double truncatePercent;
+
+    private final List<Server> servers = new ArrayList<>();
+    private ScheduledThreadPoolExecutor delayer;
+    private volatile boolean running;
+
+    private final LongAdder udpQueries = new LongAdder();
+    private final LongAdder tcpQueries = new LongAdder();
+    private final LongAdder droppedQueries = new LongAdder();
+    private final LongAdder truncatedReplies = new LongAdder();
+
+    public FakeHierarchy(int port, int tlds, int domainsPerTld, int hostsPerDomain) {
+
+        if (tlds < 1 || tlds > MAX_SERVERS)
+            throw new IllegalArgumentException("TLDs must be between 1 and " + MAX_SERVERS);
+
+        this.port = port;
+        this.tlds = tlds;
+        this.domainsPerTld = domainsPerTld;
+        this.hostsPerDomain = hostsPerDomain;
+    }
+
+    // the settings below must be made before start
+
+    public void setLeafServers(int leafServers) {
+        if (leafServers < 1 || leafServers > MAX_SERVERS)
+            throw new IllegalArgumentException("Leaf servers must be between 1 and " + MAX_SERVERS);
+        this.leafServers = leafServers;
+    }
+
+    // A records in the answer for every host name; many of them make answers that only fit over TCP
+    public void setAddressesPerName(int addressesPerName) {
+        this.addressesPerName = addressesPerName;
+    }
+
+    public void setTTL(long ttl) {
+        this.ttl = ttl;
+    }
+
+    // every reply is held back for latencyMillis plus up to jitterMillis
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    // the share of UDP queries that are never answered
+    public void setLossPercent(double lossPercent) {
+        this.lossPercent = lossPercent;
+    }
+
+    // the share of UDP replies sent with TC set and no records, so they are asked again over TCP
+    public void setTruncatePercent(double truncatePercent) {
+        this.truncatePercent = truncatePercent;
+    }
+
+    public void start() throws IOException {
+
+        servers.add(new Server(Role.ROOT, 0, loopback(Role.ROOT, 0)));
+        for (int t = 0; t < tlds; t++)
+            servers.add(new Server(Role.TLD, t, loopback(Role.TLD, t)));
+        for (int l = 0; l < leafServers; l++)
+            servers.add(new Server(Role.LEAF, l, loopback(Role.LEAF, l)));
+
+        delayer = new ScheduledThreadPoolExecutor(2, r -> {
+            Thread t = new Thread(r, "fake-delay");
+            t.setDaemon(true);
+            return t;
+        });
+
+        running = true;
+
+        for (Server server : servers) {
+
+            server.udp = DatagramChannel.open();
+            server.udp.bind(new InetSocketAddress(server.address, port));
+            server.tcp = ServerSocketChannel.open();
+            server.tcp.bind(new InetSocketAddress(server.address, port));
+
+            startThread(() -> serveUdp(server), "fake-udp-" + server.address.getHostAddress());
+            startThread(() -> acceptTcp(server), "fake-tcp-" + server.address.getHostAddress());
+        }
+    }
+
+    private static void startThread(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public InetAddress getRootAddress() {
+        return loopback(Role.ROOT, 0);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // every host name that exists, in a fixed order; consecutive indexes are in different zones
+    public long getNameCount() {
+        return (long) tlds * domainsPerTld * hostsPerDomain;
+    }
+
+    public String getName(long index) {
+        long zone = index % ((long) tlds * domainsPerTld);
+        return "host" + (index / ((long) tlds * domainsPerTld)) + getZone(zone);
+    }
+
+    // a name that does not exist, in an existing zone, so it is answered by a leaf server
+    public String getMissingName(long index) {
+        return "missing" + index + getZone(index % ((long) tlds * domainsPerTld));
+    }
+
+    private String getZone(long zone) {
+        return ".domain" + (zone / tlds) + ".tld" + (zone % tlds);
+    }
+
+    public long getUdpQueries() {
+        return udpQueries.sum();
+    }
+
+    public long getTcpQueries() {
+        return tcpQueries.sum();
+    }
+
+    public long getDroppedQueries() {
+        return droppedQueries.sum();
+    }
+
+    public long getTruncatedReplies() {
+        return truncatedReplies.sum();
+    }
+
+    private void serveUdp(Server server) {
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE);
+        PacketReader reader = new PacketReader();
+        MessageWriter writer = new MessageWriter();
+
+        while (running) {
+            try {
+                buf.clear();
+                SocketAddress client = server.udp.receive(buf);
+                buf.flip();
+                udpQueries.increment();
+
+                if (lossPercent > 0 && ThreadLocalRandom.current().nextDouble(100) < lossPercent) {
+                    droppedQueries.increment();
+                    continue;
+                }
+
+                ByteBuffer reply = reply(server, buf, reader, writer, true);
+                if (reply != null)
+                    later(() -> server.udp.send(reply, client));
+
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Fake server receive failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void acceptTcp(Server server) {
+
+        while (running) {
+            try {
+                SocketChannel connection = server.tcp.accept();
+                startThread(() -> serveTcp(server, connection), "fake-tcp-connection");
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Fake server accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // queries on a connection may be pipelined, and replies go out as they are ready
+    private void serveTcp(Server server, SocketChannel connection) {
+
+        ByteBuffer length = ByteBuffer.allocate(2);
+        PacketReader reader = new PacketReader();
+        MessageWriter writer = new MessageWriter();
+
+        try (SocketChannel channel = connection) {
+            while (running) {
+
+                length.clear();
+                readFully(channel, length);
+                ByteBuffer query = ByteBuffer.allocate(length.getShort(0) & 0xFFFF);
+                readFully(channel, query);
+                query.flip();
+                tcpQueries.increment();
+
+                ByteBuffer reply = reply(server, query, reader, writer, false);
+                if (reply == null)
+                    continue;
+
+                ByteBuffer prefix = ByteBuffer.allocate(2);
+                prefix.putShort(0, (short) reply.remaining());
+                later(() -> {
+                    synchronized (channel) {
+                        ByteBuffer[] message = { prefix, reply };
+                        while (reply.hasRemaining())
+                            channel.write(message);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // the resolver closed the connection
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining())
+            if (channel.read(dst) < 0)
+                throw new EOFException();
+    }
+
+    private interface Send {
+        void run() throws IOException;
+    }
+
+    // sends right away, or after the configured latency
+    private void later(Send send) throws IOException {
+
+        if (latencyMillis == 0 && jitterMillis == 0) {
+            send.run();
+            return;
+        }
+
+        long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+        delayer.schedule(() -> {
+            try {
+                send.run();
+            } catch (IOException e) {
+                // the resolver went away
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // the reply to query, or null if it is not a query that is answered at all
+    private ByteBuffer reply(Server server, ByteBuffer query, PacketReader reader, MessageWriter writer, boolean udp) {
+
+        String questionName;
+        int questionType;
+        int udpPayloadSize = 0;
+
+        try {
+            reader.reset(query);
+            if (reader.isResponse() || reader.getQdCount() != 1)
+                return null;
+
+            questionName = reader.getQuestionName();
+            questionType = reader.getQuestionType();
+
+            while (reader.nextRecord())
+                if (reader.getSection() == PacketReader.Section.ADDITIONAL &&
+                        reader.getType() == RecordType.OPT.getCode())
+                    udpPayloadSize = Math.max(reader.getRecordClass(), QueryEncoder.MIN_UDP_PAYLOAD_SIZE);
+
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+
+        if (questionName.endsWith("."))
+            questionName = questionName.substring(0, questionName.length() - 1);
+
+        writer.reset().question(questionName, questionType);
+        int flags = FLAG_RESPONSE | (reader.getFlags() & FLAG_RD) |
+                answer(server, questionName.toLowerCase(), questionType, writer);
+
+        int maxSize = Math.min(udpPayloadSize > 0 ? udpPayloadSize : QueryEncoder.MIN_UDP_PAYLOAD_SIZE, UDP_PAYLOAD_SIZE);
+        int optSize = udpPayloadSize > 0 ? QueryEncoder.OPT_RECORD_SIZE : 0;
+        if (udp && (writer.size() + optSize > maxSize ||
+                (truncatePercent > 0 && ThreadLocalRandom.current().nextDouble(100) < truncatePercent))) {
+            truncatedReplies.increment();
+            writer.reset().question(questionName, questionType);
+            flags |= FLAG_TRUNCATED;
+        }
+
+        if (udpPayloadSize > 0)
+            writer.opt(UDP_PAYLOAD_SIZE);
+
+        return writer.build(reader.getID(), flags, false);
+    }
+
+    // writes the records answering name to writer, returning the AA flag and the rcode
+    private int answer(Server server, String name, int type, MessageWriter writer) {
+
+        String[] labels = name.isEmpty() ? new String[0] : name.split("\\.");
+        int tld = labels.length < 1 ? -1 : parseIndex(labels[labels.length - 1], "tld", tlds);
+        int domain = labels.length < 2 ? -1 : parseIndex(labels[labels.length - 2], "domain", domainsPerTld);
+
+        switch (server.role) {
+            case ROOT:
+                if (tld < 0)
+                    return nameError(writer, "");
+                return referral(writer, "tld" + tld, Role.TLD, tld);
+
+            case TLD:
+                if (tld != server.index)
+                    return RCODE_REFUSED;
+                String tldZone = "tld" + tld;
+                if (labels.length == 1)
+                    return apex(writer, tldZone, type, Role.TLD, tld);
+                if (domain < 0)
+                    return nameError(writer, tldZone);
+                return referral(writer, "domain" + domain + "." + tldZone, Role.LEAF, domain);
+
+            default:
+                if (tld < 0 || domain < 0)
+                    return RCODE_REFUSED;
+                String zone = "domain" + domain + ".tld" + tld;
+                if (labels.length == 2)
+                    return apex(writer, zone, type, Role.LEAF, domain);
+                if (labels.length == 3)
+                    return host(writer, name, labels[0], zone, type, domain);
+                return nameError(writer, zone);
+        }
+    }
+
+    // the index in label, such as 12 in domain12, or -1 if label has no index below limit
+    private static int parseIndex(String label, String prefix, int limit) {
+
+        if (!label.startsWith(prefix) || label.length() == prefix.length() || label.length() > prefix.length() + 9)
+            return -1;
+
+        int index = 0;
+        for (int i = prefix.length(); i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            index = index * 10 + (c - '0');
+        }
+
+        return index < limit ? index : -1;
+    }
+
+    private int host(MessageWriter writer, String name, String label, String zone, int type, int domain) {
+
+        int nameserver = label.equals("ns1") ? 0 : label.equals("ns2") ? 1 : -1;
+        if (nameserver >= 0) {
+            if (type != RecordType.A.getCode())
+                return noData(writer, zone);
+            writer.answer().name(name).type(RecordType.A, DELEGATION_TTL)
+                    .address(loopback(Role.LEAF, domain + nameserver)).end();
+            return FLAG_AUTHORITATIVE;
+        }
+
+        int host = parseIndex(label, "host", hostsPerDomain);
+        if (host < 0)
+            return nameError(writer, zone);
+        if (type != RecordType.A.getCode())
+            return noData(writer, zone);
+
+        for (int i = 0; i < addressesPerName; i++)
+            writer.answer().name(name).type(RecordType.A, ttl)
+                    .u16(0x0A00 | (domain & 0xFF)).u16(((host & 0xFF) << 8) | (i & 0xFF)).end();
+
+        return FLAG_AUTHORITATIVE;
+    }
+
+    // the NS records of zone at its apex, or NODATA for other types
+    private int apex(MessageWriter writer, String zone, int type, Role role, int index) {
+
+        if (type != RecordType.NS.getCode())
+            return noData(writer, zone);
+
+        for (int i = 0; i < getNameservers(role); i++)
+            writer.answer().name(zone).type(RecordType.NS, DELEGATION_TTL).name("ns" + (i + 1) + "." + zone).end();
+        for (int i = 0; i < getNameservers(role); i++)
+            writer.additional().name("ns" + (i + 1) + "." + zone).type(RecordType.A, DELEGATION_TTL)
+                    .address(loopback(role, index + i)).end();
+
+        return FLAG_AUTHORITATIVE;
+    }
+
+    // delegates zone to its nameservers, with glue
+    private int referral(MessageWriter writer, String zone, Role role, int index) {
+
+        for (int i = 0; i < getNameservers(role); i++)
+            writer.authority().name(zone).type(RecordType.NS, DELEGATION_TTL).name("ns" + (i + 1) + "." + zone).end();
+        for (int i = 0; i < getNameservers(role); i++)
+            writer.additional().name("ns" + (i + 1) + "." + zone).type(RecordType.A, DELEGATION_TTL)
+                    .address(loopback(role, index + i)).end();
+
+        return 0;
+    }
+
+    private int nameError(MessageWriter writer, String zone) {
+        writeSOA(writer, zone);
+        return FLAG_AUTHORITATIVE | RCODE_NXDOMAIN;
+    }
+
+    private int noData(MessageWriter writer, String zone) {
+        writeSOA(writer, zone);
+        return FLAG_AUTHORITATIVE;
+    }
+
+    private static void writeSOA(MessageWriter writer, String zone) {
+        String suffix = zone.isEmpty() ? "" : "." + zone;
+        writer.authority().name(zone).type(RecordType.SOA, NEGATIVE_TTL)
+                .name("ns1" + suffix).name("hostmaster" + suffix)
+                .u32(1).u32(3600).u32(600).u32(86400).u32(NEGATIVE_TTL).end();
+    }
+
+    // second level zones have two nameservers on different leaves, if there are two
+    private int getNameservers(Role role) {
+        return role == Role.LEAF ? Math.min(2, leafServers) : 1;
+    }
+
+    // the address of the index-th server with role; leaves are shared out by domain
+    private InetAddress loopback(Role role, int index) {
+        int network = role == Role.ROOT ? 1 : role == Role.TLD ? 2 : 3;
+        int host = role == Role.LEAF ? index % leafServers + 1 : index + 1;
+        try {
+            return InetAddress.getByAddress(new byte[] { 127, 0, (byte) network, (byte) host });
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+
+        running = false;
+
+        for (Server server : servers) {
+            try {
+                server.udp.close();
+                server.tcp.close();
+            } catch (IOException e) {
+                // nothing useful to do while closing
+            }
+        }
+
+        if (delayer != null)
+            delayer.shutdownNow();
+    }
+}
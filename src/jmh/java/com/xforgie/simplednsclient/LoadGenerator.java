@@ -0,0 +1,298 @@
+package com.xforgie.simplednsclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ *
+ * Measures end to end resolver throughput against a FakeHierarchy in the same process, in
+ * the style of dnsperf: a fixed number of lookups are kept in flight for a fixed time,
+ * optionally capped at a rate, then the queries per second, latency percentiles and
+ * upstream queries per lookup are reported.
+ *
+ * Names are picked with Zipf distributed popularity, so the cache sees a mix of hot and
+ * cold names as it would in production; a share of lookups can be for names that do not
+ * exist. Runs with the same options and seed ask for the same names.
+ *
+ */
+
+public class LoadGenerator {
+
+    private final SimpleDNSClient client;
+    private final FakeHierarchy hierarchy;
+    private final int concurrency;
+    private final long durationMillis;
+
+    private double maxQueriesPerSecond;
+    private double nxPercent;
+    private double zipfExponent = 1;
+    private long seed = 1;
+
+    // each worker keeps its own results, which are merged once the run is over
+    private static class Results {
+
+        private long[] latencies = new long[1024];
+        private int count;
+        private final long[] statuses = new long[Resolution.Status.values().length];
+
+        private void record(Resolution.Status status, long latencyNanos) {
+            if (count == latencies.length)
+                latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = latencyNanos;
+            statuses[status.ordinal()]++;
+        }
+    }
+
+    public LoadGenerator(SimpleDNSClient client, FakeHierarchy hierarchy, int concurrency, long durationMillis) {
+        this.client = client;
+        this.hierarchy = hierarchy;
+        this.concurrency = concurrency;
+        this.durationMillis = durationMillis;
+    }
+
+    // 0 sends as fast as lookups complete
+    public void setMaxQueriesPerSecond(double maxQueriesPerSecond) {
+        this.maxQueriesPerSecond = maxQueriesPerSecond;
+    }
+
+    public void setNxPercent(double nxPercent) {
+        this.nxPercent = nxPercent;
+    }
+
+    // 0 picks every name equally often; larger values concentrate lookups on fewer names
+    public void setZipfExponent(double zipfExponent) {
+        this.zipfExponent = zipfExponent;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void run() throws InterruptedException {
+
+        client.start();
+
+        long upstreamBefore = hierarchy.getUdpQueries() + hierarchy.getTcpQueries();
+        long tcpBefore = hierarchy.getTcpQueries();
+        long droppedBefore = hierarchy.getDroppedQueries();
+        long truncatedBefore = hierarchy.getTruncatedReplies();
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        AtomicLong nextSend = new AtomicLong(start);
+
+        List<Thread> workers = new ArrayList<>();
+        List<Results> results = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Results worker = new Results();
+            Random random = new Random(seed + i);
+            results.add(worker);
+            workers.add(new Thread(() -> runWorker(random, end, nextSend, worker), "load-" + i));
+        }
+
+        workers.forEach(Thread::start);
+        for (Thread worker : workers)
+            worker.join();
+
+        long elapsed = System.nanoTime() - start;
+
+        long upstream = hierarchy.getUdpQueries() + hierarchy.getTcpQueries() - upstreamBefore;
+        report(results, elapsed, upstream, hierarchy.getTcpQueries() - tcpBefore,
+                hierarchy.getDroppedQueries() - droppedBefore, hierarchy.getTruncatedReplies() - truncatedBefore);
+    }
+
+    private void runWorker(Random random, long end, AtomicLong nextSend, Results results) {
+
+        long interval = maxQueriesPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / maxQueriesPerSecond) : 0;
+
+        while (true) {
+
+            // with a rate cap, every lookup takes the next free send slot
+            if (interval > 0) {
+                long slot = nextSend.getAndAdd(interval);
+                if (slot >= end)
+                    return;
+                long wait;
+                while ((wait = slot - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+            }
+
+            long sent = System.nanoTime();
+            if (sent >= end)
+                return;
+
+            Resolution resolution = client.resolve(pickName(random), RecordType.A);
+            results.record(resolution.getStatus(), System.nanoTime() - sent);
+        }
+    }
+
+    private String pickName(Random random) {
+
+        long names = hierarchy.getNameCount();
+        long index = zipfIndex(random.nextDouble(), names);
+
+        if (nxPercent > 0 && random.nextDouble() * 100 < nxPercent)
+            return hierarchy.getMissingName(index);
+
+        return hierarchy.getName(index);
+    }
+
+    // inverts the continuous approximation of the Zipf distribution over n names, so no
+    // table of n probabilities is needed
+    private long zipfIndex(double u, long n) {
+
+        double x;
+        if (zipfExponent == 0)
+            x = 1 + u * n;
+        else if (Math.abs(zipfExponent - 1) < 1e-9)
+            x = Math.exp(u * Math.log(n + 1));
+        else {
+            double a = 1 - zipfExponent;
+            x = Math.pow(u * (Math.pow(n + 1, a) - 1) + 1, 1 / a);
+        }
+
+        return Math.min(Math.max((long) x - 1, 0), n - 1);
+    }
+
+    private static void report(List<Results> results, long elapsedNanos, long upstream, long tcp,
+            long dropped, long truncated) {
+
+        int count = 0;
+        long[] statuses = new long[Resolution.Status.values().length];
+        for (Results worker : results) {
+            count += worker.count;
+            for (int i = 0; i < statuses.length; i++)
+                statuses[i] += worker.statuses[i];
+        }
+
+        long[] latencies = new long[count];
+        int offset = 0;
+        for (Results worker : results) {
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+            offset += worker.count;
+        }
+        Arrays.sort(latencies);
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Lookups completed:    %d\n", count);
+        System.out.printf("Run time (s):         %.3f\n", seconds);
+        System.out.printf("Lookups per second:   %.1f\n", count / seconds);
+
+        System.out.print("Response codes:      ");
+        for (Resolution.Status status : Resolution.Status.values())
+            System.out.printf(" %s %d (%.2f%%)", status, statuses[status.ordinal()],
+                    count == 0 ? 0 : 100.0 * statuses[status.ordinal()] / count);
+        System.out.println();
+
+        if (count > 0) {
+            long total = 0;
+            for (long latency : latencies)
+                total += latency;
+            System.out.printf("Latency (ms):         min %.3f  avg %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f\n",
+                    latencies[0] / 1e6, total / 1e6 / count, percentile(latencies, 50), percentile(latencies, 90),
+                    percentile(latencies, 99), percentile(latencies, 99.9), latencies[count - 1] / 1e6);
+        }
+
+        System.out.printf("Upstream queries:     %d (%.3f per lookup; %d over TCP, %d dropped, %d truncated)\n",
+                upstream, count == 0 ? 0 : (double) upstream / count, tcp, dropped, truncated);
+        System.out.printf("Coalesced queries:    %d\n", QueryHandler.getCoalescedQueries());
+    }
+
+    // in milliseconds, from sorted latencies
+    private static double percentile(long[] latencies, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+        return latencies[Math.min(Math.max(index, 0), latencies.length - 1)] / 1e6;
+    }
+
+    public static void main(String[] args) {
+
+        Options options = new Options();
+        options.addOption(number("c", "concurrency", "Lookups kept in flight (default 64)"));
+        options.addOption(number("l", "duration", "Seconds to run for (default 10)"));
+        options.addOption(number("Q", "max-qps", "Caps the lookup rate (default 0, no cap)"));
+        options.addOption(number("p", "port", "The port of the fake servers (default 5300)"));
+        options.addOption(number("t", "tlds", "TLD servers and zones (default 4)"));
+        options.addOption(number("d", "domains", "Zones under every TLD (default 1000)"));
+        options.addOption(number("n", "hosts", "Host names in every zone (default 100)"));
+        options.addOption(number("a", "addresses", "A records for every host name (default 1)"));
+        options.addOption(number("T", "ttl", "TTL of host records in seconds (default 300)"));
+        options.addOption(number("L", "latency", "Milliseconds every reply is delayed (default 0)"));
+        options.addOption(number("j", "jitter", "Up to this many more milliseconds of delay (default 0)"));
+        options.addOption(number("x", "loss", "Percentage of UDP queries dropped (default 0)"));
+        options.addOption(number("r", "truncate", "Percentage of UDP replies truncated (default 0)"));
+        options.addOption(number("X", "nxdomain", "Percentage of lookups for names that do not exist (default 0)"));
+        options.addOption(number("z", "zipf", "Zipf exponent of name popularity; 0 is uniform (default 1)"));
+        options.addOption(number("s", "seed", "Seed for picking names (default 1)"));
+        options.addOption(number("S", "sockets", "Upstream UDP sockets of the resolver (default 1)"));
+        options.addOption(Option.builder("h").longOpt("help").desc("Displays this help").build());
+
+        FakeHierarchy hierarchy = null;
+        try {
+            CommandLine cmd = new DefaultParser().parse(options, args);
+            if (cmd.hasOption("h")) {
+                new HelpFormatter().printHelp("LoadGenerator", options);
+                return;
+            }
+
+            hierarchy = new FakeHierarchy((int) get(cmd, "p", 5300), (int) get(cmd, "t", 4),
+                    (int) get(cmd, "d", 1000), (int) get(cmd, "n", 100));
+            hierarchy.setAddressesPerName((int) get(cmd, "a", 1));
+            hierarchy.setTTL((long) get(cmd, "T", 300));
+            hierarchy.setLatency((long) get(cmd, "L", 0), (long) get(cmd, "j", 0));
+            hierarchy.setLossPercent(get(cmd, "x", 0));
+            hierarchy.setTruncatePercent(get(cmd, "r", 0));
+            hierarchy.start();
+
+            QueryHandler.setServerPort(hierarchy.getPort());
+            QueryHandler.setSockets((int) get(cmd, "S", QueryHandler.DEFAULT_SOCKETS));
+            SimpleDNSClient client = new SimpleDNSClient(hierarchy.getRootAddress());
+
+            LoadGenerator generator = new LoadGenerator(client, hierarchy,
+                    (int) get(cmd, "c", 64), (long) (get(cmd, "l", 10) * 1000));
+            generator.setMaxQueriesPerSecond(get(cmd, "Q", 0));
+            generator.setNxPercent(get(cmd, "X", 0));
+            generator.setZipfExponent(get(cmd, "z", 1));
+            generator.setSeed((long) get(cmd, "s", 1));
+
+            System.out.printf("Resolving %d names under %s port %d\n\n", hierarchy.getNameCount(),
+                    hierarchy.getRootAddress().getHostAddress(), hierarchy.getPort());
+            generator.run();
+
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("LoadGenerator", options);
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Fake hierarchy could not be started: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (hierarchy != null)
+                hierarchy.close();
+        }
+
+        System.exit(0);
+    }
+
+    private static Option number(String opt, String longOpt, String description) {
+        return Option.builder(opt).longOpt(longOpt).desc(description).hasArg().argName("N").type(Number.class).build();
+    }
+
+    private static double get(CommandLine cmd, String opt, double defaultValue) throws ParseException {
+        return cmd.hasOption(opt) ? ((Number) cmd.getParsedOptionValue(opt)).doubleValue() : defaultValue;
+    }
+}
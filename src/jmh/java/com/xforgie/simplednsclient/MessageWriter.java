@@ -0,0 +1,164 @@
+package com.xforgie.simplednsclient;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * Writes DNS messages with any section filled in, compressing names the way common
+ * nameservers do. Sections are written in order, and each record is written as its
+ * owner name, type, data and end. Used to build the benchmark corpus and the replies
+ * of the fake hierarchy.
+ *
+ */
+
+public class MessageWriter {
+
+    private static final int MAX_MESSAGE_SIZE = 0xFFFF;
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+
+    private final ByteBuffer buf = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+    private final Map<String, Integer> names = new HashMap<>();
+    private final int[] counts = new int[4];
+    private int rdLength;
+
+    public MessageWriter() {
+        reset();
+    }
+
+    // starts a new message, so one writer can be reused by a thread
+    public MessageWriter reset() {
+        buf.clear();
+        buf.position(QueryEncoder.HEADER_SIZE);
+        names.clear();
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = 0;
+        return this;
+    }
+
+    public MessageWriter question(String name, int type) {
+        counts[0]++;
+        name(name);
+        buf.putShort((short) type);
+        buf.putShort((short) 1);
+        return this;
+    }
+
+    public MessageWriter question(String name, RecordType type) {
+        return question(name, type.getCode());
+    }
+
+    public MessageWriter answer() {
+        counts[1]++;
+        return this;
+    }
+
+    public MessageWriter authority() {
+        counts[2]++;
+        return this;
+    }
+
+    public MessageWriter additional() {
+        counts[3]++;
+        return this;
+    }
+
+    // a name, ending in a pointer to the longest suffix already written; "" is the root
+    public MessageWriter name(String name) {
+
+        while (!name.isEmpty()) {
+
+            Integer offset = names.get(name);
+            if (offset != null) {
+                buf.putShort((short) (0xC000 | offset));
+                return this;
+            }
+            if (buf.position() <= MAX_POINTER_OFFSET)
+                names.put(name, buf.position());
+
+            int dot = name.indexOf('.');
+            String label = dot < 0 ? name : name.substring(0, dot);
+            buf.put((byte) label.length());
+            buf.put(label.getBytes(StandardCharsets.US_ASCII));
+            name = dot < 0 ? "" : name.substring(dot + 1);
+        }
+
+        buf.put((byte) 0);
+        return this;
+    }
+
+    // type, class IN and TTL; the data follows
+    public MessageWriter type(RecordType type, long ttl) {
+        buf.putShort((short) type.getCode());
+        buf.putShort((short) 1);
+        buf.putInt((int) ttl);
+        rdLength = buf.position();
+        buf.putShort((short) 0);
+        return this;
+    }
+
+    public MessageWriter address(InetAddress address) {
+        buf.put(address.getAddress());
+        return this;
+    }
+
+    public MessageWriter address(String literal) {
+        try {
+            return address(InetAddress.getByName(literal));
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(literal, e);
+        }
+    }
+
+    public MessageWriter u16(int value) {
+        buf.putShort((short) value);
+        return this;
+    }
+
+    public MessageWriter u32(long value) {
+        buf.putInt((int) value);
+        return this;
+    }
+
+    // fills in the length of the record's data
+    public MessageWriter end() {
+        buf.putShort(rdLength, (short) (buf.position() - rdLength - 2));
+        return this;
+    }
+
+    public MessageWriter opt(int udpPayloadSize) {
+        counts[3]++;
+        buf.put((byte) 0);
+        buf.putShort((short) RecordType.OPT.getCode());
+        buf.putShort((short) udpPayloadSize);
+        buf.putInt(0);
+        buf.putShort((short) 0);
+        return this;
+    }
+
+    // the length of the message so far
+    public int size() {
+        return buf.position();
+    }
+
+    // the finished message in a buffer of its own
+    public ByteBuffer build(int id, int flags, boolean direct) {
+
+        buf.putShort(0, (short) id);
+        buf.putShort(2, (short) flags);
+        for (int i = 0; i < counts.length; i++)
+            buf.putShort(4 + 2 * i, (short) counts[i]);
+
+        ByteBuffer message = buf.duplicate();
+        message.flip();
+
+        ByteBuffer packet = direct ? ByteBuffer.allocateDirect(message.remaining()) : ByteBuffer.allocate(message.remaining());
+        packet.put(message);
+        packet.flip();
+        return packet;
+    }
+}
@@ -0,0 +1,61 @@
+package com.xforgie.simplednsclient;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xforgie.simplednsclient.responseerrors.ResponseException;
+
+/**
+ *
+ * Decoding cost of each response in the corpus, through the same path as upstream replies.
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketDecodeBenchmark {
+
+    @Param
+    private ResponseCorpus response;
+
+    private ByteBuffer packet;
+    private final PacketReader reader = new PacketReader();
+
+    @Setup
+    public void setUp() {
+        packet = response.getPacket();
+    }
+
+    @Benchmark
+    public DecodedPacket decodePacket() throws ResponseException {
+        return PacketHandler.decodePacket(packet);
+    }
+
+    // walking the records without building any, as the server does for queries
+    @Benchmark
+    public int readRecords() {
+
+        reader.reset(packet);
+        int types = 0;
+        while (reader.nextRecord())
+            types += reader.getType();
+
+        return types;
+    }
+}
@@ -0,0 +1,61 @@
+package com.xforgie.simplednsclient;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Cost of writing queries, and of hashing the SearchNodes that key the cache and the
+ * in-flight tables.
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryEncodeBenchmark {
+
+    private static final String HOST_NAME = "www.shop.example.com";
+
+    private final SearchNode node = new SearchNode(HOST_NAME, RecordType.A);
+    private final ByteBuffer query = ByteBuffer.allocateDirect(
+            QueryEncoder.HEADER_SIZE + QueryEncoder.MAX_QUESTION_SIZE + QueryEncoder.OPT_RECORD_SIZE);
+    private final char[] hostName = HOST_NAME.toCharArray();
+    private int id;
+
+    @Benchmark
+    public byte[] getQueryToSend() {
+        return PacketHandler.getQueryToSend(HOST_NAME, RecordType.A);
+    }
+
+    // the query engine's path, into a pooled buffer
+    @Benchmark
+    public int writeQuery() {
+        query.clear();
+        return QueryEncoder.writeQuery(query, id++ & 0xFFFF, node, QueryHandler.DEFAULT_UDP_PAYLOAD_SIZE);
+    }
+
+    // names decoded from packets are new strings, so their hash codes are not cached yet
+    @Benchmark
+    public int searchNodeHashCode() {
+        return new SearchNode(new String(hostName), RecordType.A).hashCode();
+    }
+
+    @Benchmark
+    public boolean searchNodeEquals() {
+        return new SearchNode(new String(hostName), RecordType.A).equals(node);
+    }
+}
@@ -0,0 +1,102 @@
+package com.xforgie.simplednsclient;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Responses shaped like the ones resolvers see on the wire, written with name compression
+ * the way common nameservers write them, for the decoding benchmarks.
+ *
+ */
+
+public enum ResponseCorpus {
+
+    // a root server referring www.example.com to the .com servers, with A and AAAA glue
+    REFERRAL {
+        @Override
+        ByteBuffer write(MessageWriter w) {
+
+            w.question("www.example.com", RecordType.A);
+
+            for (char c = 'a'; c <= 'm'; c++)
+                w.authority().name("com").type(RecordType.NS, 172800).name(c + ".gtld-servers.net").end();
+
+            for (char c = 'a'; c <= 'm'; c++)
+                w.additional().name(c + ".gtld-servers.net").type(RecordType.A, 172800)
+                        .address("192." + (c - 'a' + 5) + ".6.30").end();
+            for (char c = 'a'; c <= 'm'; c++)
+                w.additional().name(c + ".gtld-servers.net").type(RecordType.AAAA, 172800)
+                        .address("2001:503:" + Integer.toHexString(0xa83e + c - 'a') + "::2:30").end();
+
+            return w.opt(1232).build(0x1234, 0x8000, true);
+        }
+    },
+
+    // a CDN hostname behind a long chain of CNAMEs, as a recursive resolver returns it
+    CNAME_CHAIN {
+        @Override
+        ByteBuffer write(MessageWriter w) {
+
+            String[] chain = {
+                "www.shop.example.com",
+                "www.shop.example.com.cdn.example.net",
+                "geo.cdn.example.net",
+                "eu.geo.cdn.example.net",
+                "eu-west.lb.cdn.example.net",
+                "pop-ams.lb.cdn.example.net",
+                "e1234.a.edge.example.org",
+                "e1234.dsc.a.edge.example.org",
+            };
+
+            w.question(chain[0], RecordType.A);
+            for (int i = 0; i < chain.length - 1; i++)
+                w.answer().name(chain[i]).type(RecordType.CNAME, 300).name(chain[i + 1]).end();
+            for (int i = 0; i < 2; i++)
+                w.answer().name(chain[chain.length - 1]).type(RecordType.A, 20).address("203.0.113." + (10 + i)).end();
+
+            return w.opt(1232).build(0x1234, 0x8180, true);
+        }
+    },
+
+    // mail exchangers with their nameservers and glue, where nearly every name is a pointer
+    COMPRESSED {
+        @Override
+        ByteBuffer write(MessageWriter w) {
+
+            w.question("example.com", RecordType.MX);
+            for (int i = 1; i <= 10; i++)
+                w.answer().name("example.com").type(RecordType.MX, 3600)
+                        .u16(i * 10).name("mx" + i + ".mail.example.com").end();
+            for (int i = 1; i <= 4; i++)
+                w.authority().name("example.com").type(RecordType.NS, 86400).name("ns" + i + ".example.com").end();
+            for (int i = 1; i <= 10; i++)
+                w.additional().name("mx" + i + ".mail.example.com").type(RecordType.A, 3600)
+                        .address("198.51.100." + i).end();
+            for (int i = 1; i <= 4; i++)
+                w.additional().name("ns" + i + ".example.com").type(RecordType.A, 86400)
+                        .address("192.0.2." + i).end();
+
+            return w.opt(1232).build(0x1234, 0x8400, true);
+        }
+    },
+
+    // a load balanced name with as many addresses as fit in an EDNS(0) payload
+    LARGE_ANSWER {
+        @Override
+        ByteBuffer write(MessageWriter w) {
+
+            w.question("pool.example.com", RecordType.A);
+            for (int i = 0; i < 72; i++)
+                w.answer().name("pool.example.com").type(RecordType.A, 60).address("10.20." + (i / 8) + "." + i).end();
+
+            return w.opt(1232).build(0x1234, 0x8400, true);
+        }
+    };
+
+    abstract ByteBuffer write(MessageWriter w);
+
+    // the response in a direct buffer, as the query engine receives it
+    public ByteBuffer getPacket() {
+        return write(new MessageWriter());
+    }
+}
@@ -0,0 +1,206 @@
+package com.xforgie.simplednsclient;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Resolves a list of hostnames concurrently, writing each result as soon as it completes.
+ *
+ * Input has one lookup per line: a hostname optionally followed by a record type (A by default).
+ * Blank lines and lines starting with '#' are skipped. Output is in completion order and
+ * every result carries the zero-based index of its input line, counting skipped lines.
+ *
+ */
+
+public class BatchResolver implements Runnable {
+
+    public enum OutputFormat {
+        CSV, JSON
+    }
+
+    private final SimpleDNSClient client;
+    private final String inputPath;
+    private final int concurrency;
+    private final OutputFormat format;
+
+    // inputPath of "-" reads from stdin
+    public BatchResolver(SimpleDNSClient client, String inputPath, int concurrency, OutputFormat format) {
+        this.client = client;
+        this.inputPath = inputPath;
+        this.concurrency = concurrency;
+        this.format = format;
+    }
+
+    @Override
+    public void run() {
+
+        client.start();
+
+        try (InputStream in = "-".equals(inputPath) ? System.in : new FileInputStream(inputPath)) {
+
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            resolveAll(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), out);
+            out.flush();
+
+        } catch (IOException e) {
+            System.err.println("Batch input could not be read: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void resolveAll(BufferedReader input, Writer out) throws IOException, InterruptedException {
+
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+
+        // bounds the number of lookups read ahead of the workers, so huge inputs stream through
+        Semaphore permits = new Semaphore(concurrency * 2);
+
+        if (format == OutputFormat.CSV)
+            writeLine(out, "index,name,type,status,ttl,data");
+
+        try {
+
+            String line;
+            long index = -1;
+            while ((line = input.readLine()) != null) {
+
+                index++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                SearchNode node = parseLine(line);
+                if (node == null) {
+                    System.err.printf("Skipping invalid input line %d: %s\n", index, line);
+                    continue;
+                }
+
+                long lookupIndex = index;
+                permits.acquire();
+                workers.execute(() -> {
+                    try {
+                        Resolution resolution;
+                        try {
+                            resolution = client.resolve(node.getHostName(), node.getType());
+                        } catch (RuntimeException e) {
+                            // a lookup that blew up still gets its row, and the batch carries on
+                            System.err.printf("Lookup %d failed: %s\n", lookupIndex, e);
+                            resolution = Resolution.of(Resolution.Status.SERVFAIL);
+                        }
+                        writeLine(out, format(lookupIndex, node, resolution));
+                    } catch (IOException e) {
+                        System.err.println("Batch output could not be written: " + e.getMessage());
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+    // parses "<HOSTNAME> [TYPE]", returning null for an unknown type or one that cannot be queried
+    private static SearchNode parseLine(String line) {
+
+        String[] fields = line.split("[\\s,]+");
+
+        RecordType type = RecordType.A;
+        if (fields.length > 1) {
+            try {
+                type = RecordType.valueOf(fields[1].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            // OPT is a pseudo record of EDNS, not a type that can be asked for
+            if (type == RecordType.OTHER || type == RecordType.OPT)
+                return null;
+        }
+
+        return new SearchNode(fields[0], type);
+    }
+
+    private String format(long index, SearchNode node, Resolution resolution) {
+
+        StringBuilder sb = new StringBuilder();
+
+        if (format == OutputFormat.CSV) {
+
+            // one row per record, or a single row with empty fields when nothing was found
+            if (resolution.isEmpty())
+                appendCSVRow(sb, index, node, resolution.getStatus(), "", "");
+
+            for (ResourceRecord record : resolution.getRecords()) {
+                if (sb.length() > 0)
+                    sb.append('\n');
+                appendCSVRow(sb, index, node, resolution.getStatus(),
+                        Long.toString(record.getTTL()), record.getTextResult());
+            }
+
+        } else {
+
+            sb.append("{\"index\":").append(index)
+              .append(",\"name\":\"").append(JSON.escape(node.getHostName()))
+              .append("\",\"type\":\"").append(node.getType())
+              .append("\",\"status\":\"").append(resolution.getStatus())
+              .append("\",\"answers\":[");
+
+            boolean first = true;
+            for (ResourceRecord record : resolution.getRecords()) {
+                if (!first)
+                    sb.append(',');
+                first = false;
+                sb.append("{\"ttl\":").append(record.getTTL())
+                  .append(",\"data\":\"").append(JSON.escape(record.getTextResult())).append("\"}");
+            }
+
+            sb.append("]}");
+        }
+
+        return sb.toString();
+    }
+
+    private static void appendCSVRow(StringBuilder sb, long index, SearchNode node,
+            Resolution.Status status, String ttl, String data) {
+        sb.append(index).append(',')
+          .append(escapeCSV(node.getHostName())).append(',')
+          .append(node.getType()).append(',')
+          .append(status).append(',')
+          .append(ttl).append(',')
+          .append(escapeCSV(data));
+    }
+
+    private static String escapeCSV(String value) {
+
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0)
+            return value;
+
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    // results are flushed line by line so they can be consumed while the batch is running
+    private static void writeLine(Writer out, String line) throws IOException {
+        synchronized (out) {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.xforgie.simplednsclient;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * A pool of equally sized ByteBuffers, so buffers for outgoing packets are reused
+ * instead of allocated per query.
+ *
+ */
+
+public class BufferPool {
+
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final int maxPooled;
+
+    // at most maxPooled released buffers are kept; the rest are left to the garbage collector
+    public BufferPool(int bufferSize, boolean direct, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.maxPooled = maxPooled;
+    }
+
+    // returns a cleared buffer of bufferSize bytes
+    public ByteBuffer acquire() {
+
+        ByteBuffer buf = free.poll();
+        if (buf == null)
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+
+        pooled.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    // buf must not be used by the caller afterwards
+    public void release(ByteBuffer buf) {
+
+        if (buf.capacity() != bufferSize)
+            return;
+
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+
+        free.add(buf);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -1,25 +1,204 @@
 package com.xforgie.simplednsclient;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class Cache {
 
+    // must be a power of two
+    private static final int LOCK_STRIPES = 64;
+
+    // client lookups an entry needs within its lifetime before it is worth refreshing ahead of expiry
+    private static final int MIN_PREFETCH_HITS = 2;
+
     private static Cache cache = new Cache();
 
-    private Map<SearchNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new HashMap<>();
+    // the records of a snapshot that had not expired when they were picked out, and when the
+    // first of them expires
+    private static class ValidRecords {
+
+        private final Set<ResourceRecord> records;
+        private final long earliestExpiration;
+
+        private ValidRecords(Set<ResourceRecord> records, long earliestExpiration) {
+            this.records = records;
+            this.earliestExpiration = earliestExpiration;
+        }
+    }
+
+    // an immutable snapshot of the records for one node, replaced wholesale on every write;
+    // only its lookup counter changes, and it starts over with every new snapshot
+    private static class CachedRecords {
+
+        private final Set<ResourceRecord> records;
+
+        // once reads reach this time, the snapshot is in the prefetch window of a record
+        private final long prefetchAfter;
+        private final LongAdder hits = new LongAdder();
+        private final AtomicBoolean prefetched = new AtomicBoolean();
+
+        // picked out again only when one of them expires, so reads do not copy the records
+        private volatile ValidRecords valid;
+
+        private CachedRecords(Set<ResourceRecord> records, double prefetchWindow) {
+
+            long earliest = Long.MAX_VALUE;
+            long prefetch = Long.MAX_VALUE;
+            for (ResourceRecord record : records) {
+                earliest = Math.min(earliest, record.getExpirationTime());
+                prefetch = Math.min(prefetch,
+                        record.getExpirationTime() - (long) (record.getOriginalTTL() * 1000 * prefetchWindow));
+            }
+
+            this.records = Collections.unmodifiableSet(records);
+            this.prefetchAfter = prefetchWindow > 0 ? prefetch : Long.MAX_VALUE;
+            this.valid = new ValidRecords(this.records, earliest);
+        }
+
+        // the records that have not expired by now
+        private Set<ResourceRecord> getValidRecords(long now) {
+
+            ValidRecords current = valid;
+            if (current.earliestExpiration > now)
+                return current.records;
+
+            // racing readers may both pick them out; either result is correct
+            Set<ResourceRecord> remaining = new LinkedHashSet<>();
+            long earliest = Long.MAX_VALUE;
+            for (ResourceRecord record : current.records) {
+                if (record.getExpirationTime() > now) {
+                    remaining.add(record);
+                    earliest = Math.min(earliest, record.getExpirationTime());
+                }
+            }
+
+            current = new ValidRecords(remaining.isEmpty() ? 
+                    Collections.emptySet() : Collections.unmodifiableSet(remaining), earliest);
+            valid = current;
+            return current.records;
+        }
+    }
+
+    // a cached NXDOMAIN (keyed by host name) or NODATA (keyed by node) answer, see RFC 2308
+    private static class NegativeEntry {
+
+        private final Object key;
+        private final Resolution.Status status;
+        // the SOA of the zone that gave the answer
+        private final ResourceRecord soa;
+        private final long expirationTime;
+
+        private NegativeEntry(Object key, Resolution.Status status, ResourceRecord soa, long expirationTime) {
+            this.key = key;
+            this.status = status;
+            this.soa = soa;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    // readers never lock and never observe a set that is being modified
+    private final Map<SearchNode, CachedRecords> cachedResults = new ConcurrentHashMap<>();
+
+    private final Map<Object, NegativeEntry> negativeResults = new ConcurrentHashMap<>();
+
+    private final Object[] writeLocks = new Object[LOCK_STRIPES];
+
+    private final LongAdder evictions = new LongAdder();
+
+    private volatile Consumer<SearchNode> prefetchHandler;
+    private volatile double prefetchWindow;
+
+    // how long expired records are kept to be served stale (RFC 8767)
+    private volatile long staleWindowMillis;
+
+    // reclaims records in the background once their TTL runs out
+    private final ExpiryWheel<ResourceRecord> expiryWheel = new ExpiryWheel<>("cache-expiry", this::expire);
+    private final ExpiryWheel<NegativeEntry> negativeExpiryWheel = new ExpiryWheel<>("negative-cache-expiry",
+            entry -> negativeResults.remove(entry.key, entry));
+
+    private Cache() {
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            writeLocks[i] = new Object();
+    }
 
     public static Cache getCache() {
         return cache;
     }
 
+    // popular entries read in the last prefetchWindow (a fraction) of their TTL are handed to
+    // handler, which is expected to refresh them in the background; null turns prefetching off
+    public void setPrefetchHandler(Consumer<SearchNode> handler, double prefetchWindow) {
+        this.prefetchWindow = prefetchWindow;
+        this.prefetchHandler = handler;
+    }
+
+    // expired records are kept for staleWindowMillis, and can be read through getStaleRecords
+    // until then; only affects records cached afterwards
+    public void setStaleWindow(long staleWindowMillis) {
+        this.staleWindowMillis = staleWindowMillis;
+    }
+
+    // returns the records of node that have expired but are still inside the stale window,
+    // or an empty set if node has any records that have not expired
+    public Set<ResourceRecord> getStaleRecords(SearchNode node) {
+
+        CachedRecords results = cachedResults.get(node);
+        if (results == null)
+            return Collections.emptySet();
+
+        long now = CoarseClock.currentTimeMillis();
+        Set<ResourceRecord> stale = new LinkedHashSet<>();
+        for (ResourceRecord record : results.records) {
+            if (record.isStillValid())
+                return Collections.emptySet();
+            if (record.getExpirationTime() + staleWindowMillis > now)
+                stale.add(record);
+        }
+
+        return Collections.unmodifiableSet(stale);
+    }
+
+    // the records of node that have not expired; reads made while resolving, such as for
+    // nameservers or to check for a CNAME, do not count towards prefetching
     public Set<ResourceRecord> getResourceRecords(SearchNode node) {
-    	
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+
+        CachedRecords results = cachedResults.get(node);
+        if (results == null)
+            return Collections.emptySet();
+
+        // a record may have expired without the wheel having reclaimed it yet
+        return results.getValidRecords(CoarseClock.currentTimeMillis());
+    }
+
+    // as above, for a client lookup answered from the cache; each lookup reads a node at most
+    // once through here, so the count of them decides whether the node is worth prefetching
+    public Set<ResourceRecord> lookupResourceRecords(SearchNode node) {
+
+        CachedRecords results = cachedResults.get(node);
         if (results == null)
             return Collections.emptySet();
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+        long now = CoarseClock.currentTimeMillis();
+        results.hits.increment();
+
+        if (now >= results.prefetchAfter)
+            prefetch(node, results);
+
+        return results.getValidRecords(now);
+    }
+
+    // asks for node to be refreshed once per snapshot, if it was looked up often enough
+    private void prefetch(SearchNode node, CachedRecords results) {
+
+        Consumer<SearchNode> handler = prefetchHandler;
+        if (handler == null || results.hits.sum() < MIN_PREFETCH_HITS)
+            return;
+
+        if (results.prefetched.compareAndSet(false, true))
+            handler.accept(node);
     }
 
     public void addResourceRecord(ResourceRecord record) {
@@ -27,14 +206,131 @@ public class Cache {
         if (!record.isStillValid())
         	return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        SearchNode node = record.getNode();
+
+        synchronized (getWriteLock(node)) {
+
+            CachedRecords results = cachedResults.get(node);
+            if (results == null) {
+                cachedResults.put(node, new CachedRecords(Collections.singleton(record), prefetchWindow));
+                expiryWheel.schedule(record, record.getExpirationTime() + staleWindowMillis);
+                return;
+            }
+
+            ResourceRecord oldRecord = null;
+            for (ResourceRecord result : results.records) {
+                if (result.equals(record)) {
+                    oldRecord = result;
+                    break;
+                }
+            }
+
+            if (oldRecord != null && !oldRecord.expiresBefore(record))
+                return;
+
+            // fresh records replace any stale ones
+            Set<ResourceRecord> updated = new LinkedHashSet<>();
+            for (ResourceRecord result : results.records)
+                if (result != oldRecord && result.isStillValid())
+                    updated.add(result);
+            updated.add(record);
+
+            cachedResults.put(node, new CachedRecords(updated, prefetchWindow));
+            expiryWheel.schedule(record, record.getExpirationTime() + staleWindowMillis);
         }
+    }
+
+    // returns NXDOMAIN or NODATA if node is cached as nonexistent, or null otherwise
+    public Resolution.Status getNegativeResult(SearchNode node) {
+        NegativeEntry entry = getNegativeEntry(node);
+        return entry == null ? null : entry.status;
+    }
+
+    // returns the SOA that a cached NXDOMAIN or NODATA answer for node came with, its TTL
+    // counting down with the answer's, or null if node is not cached as nonexistent
+    public ResourceRecord getNegativeAuthority(SearchNode node) {
+
+        NegativeEntry entry = getNegativeEntry(node);
+        if (entry == null)
+            return null;
+
+        long remaining = (entry.expirationTime - CoarseClock.currentTimeMillis()) / 1000;
+        return entry.soa.withTTL(remaining);
+    }
+
+    // name errors are keyed by the name alone, which like SearchNode ignores case;
+    // toLowerCase returns the name itself when it is lower case already
+    private static String getNameKey(SearchNode node) {
+        return node.getHostName().toLowerCase(Locale.ROOT);
+    }
+
+    private NegativeEntry getNegativeEntry(SearchNode node) {
+
+        NegativeEntry entry = negativeResults.get(getNameKey(node));
+        if (entry == null || entry.expirationTime <= CoarseClock.currentTimeMillis())
+            entry = negativeResults.get(node);
+
+        if (entry == null || entry.expirationTime <= CoarseClock.currentTimeMillis())
+            return null;
+
+        return entry;
+    }
+
+    // caches that the host name of node does not exist, for any type, as soa said
+    public void addNameError(SearchNode node, ResourceRecord soa, long ttl) {
+        addNegativeResult(getNameKey(node), Resolution.Status.NXDOMAIN, soa, ttl);
+    }
+
+    // caches that node has no records of its type, as soa said
+    public void addNoData(SearchNode node, ResourceRecord soa, long ttl) {
+        addNegativeResult(node, Resolution.Status.NODATA, soa, ttl);
+    }
+
+    private void addNegativeResult(Object key, Resolution.Status status, ResourceRecord soa, long ttl) {
+
+        if (ttl <= 0)
+            return;
+
+        NegativeEntry entry = new NegativeEntry(key, status, soa, CoarseClock.currentTimeMillis() + ttl * 1000);
+        negativeResults.put(key, entry);
+        negativeExpiryWheel.schedule(entry, entry.expirationTime);
+    }
+
+    // called from the expiry wheel once the stale window of record is over; records that
+    // were already replaced are ignored
+    private void expire(ResourceRecord record) {
+
+        SearchNode node = record.getNode();
+        long now = CoarseClock.currentTimeMillis();
+
+        synchronized (getWriteLock(node)) {
+
+            CachedRecords results = cachedResults.get(node);
+            if (results == null || !results.records.contains(record))
+                return;
+
+            // records still inside their stale window stay, even if only stale ones are left
+            Set<ResourceRecord> remaining = new LinkedHashSet<>();
+            for (ResourceRecord result : results.records)
+                if (result.getExpirationTime() + staleWindowMillis > now)
+                    remaining.add(result);
+
+            evictions.add(results.records.size() - remaining.size());
+
+            if (remaining.isEmpty())
+                cachedResults.remove(node);
+            else if (remaining.size() != results.records.size())
+                cachedResults.put(node, new CachedRecords(remaining, prefetchWindow));
+        }
+    }
+
+    // records reclaimed once their TTL and stale window ran out
+    public long getEvictions() {
+        return evictions.sum();
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    private Object getWriteLock(SearchNode node) {
+        int hash = node.hashCode();
+        return writeLocks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
     }
-}
\ No newline at end of file
+}
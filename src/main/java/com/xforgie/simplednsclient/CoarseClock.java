@@ -0,0 +1,42 @@
+package com.xforgie.simplednsclient;
+
+/**
+ *
+ * A millisecond clock that is refreshed by a background thread, so hot paths
+ * can read the time without a system call or an allocation
+ *
+ */
+
+public final class CoarseClock {
+
+    private static final long RESOLUTION_MILLIS = 10;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread ticker = new Thread(CoarseClock::tick, "coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+
+    }
+
+    // accurate to within RESOLUTION_MILLIS
+    public static long currentTimeMillis() {
+        return now;
+    }
+
+    private static void tick() {
+
+        while (true) {
+            now = System.currentTimeMillis();
+            try {
+                Thread.sleep(RESOLUTION_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -53,6 +53,11 @@ public class DecodedPacket {
     @SuppressWarnings("unused")
 	private int qClass;
 
+    // from the OPT record, if the response had one
+    private boolean edns;
+    private int udpPayloadSize;
+    private int ednsVersion;
+
     private ResourceRecord[] answers;
     private ResourceRecord[] authorities;
     private ResourceRecord[] additionals;
@@ -85,6 +90,17 @@ public class DecodedPacket {
         this.rCode = rCode & 0xF;
     }
 
+    // the upper 8 bits of a 12 bit RCODE, from the OPT record
+    public void setExtendedRCode(int extendedRCode) {
+        this.rCode = ((extendedRCode & 0xFF) << 4) | (rCode & 0xF);
+    }
+
+    public void setEDNS(int udpPayloadSize, int ednsVersion) {
+        this.edns = true;
+        this.udpPayloadSize = udpPayloadSize & 0xFFFF;
+        this.ednsVersion = ednsVersion & 0xFF;
+    }
+
     public void setQdCount(int qdCount) {
         this.qdCount = qdCount & 0xFFFF;
     }
@@ -145,6 +161,18 @@ public class DecodedPacket {
         return rCode;
     }
 
+    public boolean hasEDNS() {
+        return edns;
+    }
+
+    public int getUDPPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    public int getEDNSVersion() {
+        return ednsVersion;
+    }
+
     public ResourceRecord[] getAnswers() {
         return answers;
     }
@@ -0,0 +1,146 @@
+package com.xforgie.simplednsclient;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ *
+ * A hierarchical timing wheel with one second ticks. Scheduling is a single
+ * lock-free enqueue; the wheel itself is owned by a background thread that
+ * places, cascades and expires entries in amortized O(1) each.
+ *
+ */
+
+public class ExpiryWheel<T> {
+
+    private static final long TICK_MILLIS = 1000;
+
+    // level 0 covers 256 s, level 1 about 4.5 h and level 2 about 12 days;
+    // anything further out waits in the last level and is placed again when it cascades
+    private static final int[] LEVEL_BITS = {8, 6, 6};
+
+    private static class Entry<T> {
+
+        private final T item;
+        private final long expiryTick;
+
+        private Entry(T item, long expiryTick) {
+            this.item = item;
+            this.expiryTick = expiryTick;
+        }
+    }
+
+    private final Queue<Entry<T>> incoming = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Entry<T>>[][] levels;
+    private final Consumer<T> onExpiry;
+
+    private long currentTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ExpiryWheel(String name, Consumer<T> onExpiry) {
+
+        this.onExpiry = onExpiry;
+
+        levels = new ArrayDeque[LEVEL_BITS.length][];
+        for (int level = 0; level < LEVEL_BITS.length; level++) {
+            levels[level] = new ArrayDeque[1 << LEVEL_BITS[level]];
+            for (int slot = 0; slot < levels[level].length; slot++)
+                levels[level][slot] = new ArrayDeque<>();
+        }
+
+        currentTick = toTick(CoarseClock.currentTimeMillis());
+
+        Thread reaper = new Thread(this::run, name);
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    // item will be handed to the expiry consumer shortly after expiresAtMillis
+    public void schedule(T item, long expiresAtMillis) {
+        // round up so an entry never fires before it has expired
+        incoming.add(new Entry<>(item, toTick(expiresAtMillis + TICK_MILLIS - 1)));
+    }
+
+    private static long toTick(long millis) {
+        return millis / TICK_MILLIS;
+    }
+
+    private void run() {
+
+        while (true) {
+
+            try {
+                Thread.sleep(TICK_MILLIS - CoarseClock.currentTimeMillis() % TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            Entry<T> entry;
+            while ((entry = incoming.poll()) != null)
+                place(entry);
+
+            // catch up on every tick that has passed, in case the thread was delayed
+            long nowTick = toTick(CoarseClock.currentTimeMillis());
+            while (currentTick < nowTick)
+                advance();
+        }
+    }
+
+    private void advance() {
+
+        currentTick++;
+
+        // cascade higher levels down as the lower levels wrap around
+        int shift = 0;
+        for (int level = 0; level < LEVEL_BITS.length - 1; level++) {
+            shift += LEVEL_BITS[level];
+            if ((currentTick & ((1L << shift) - 1)) != 0)
+                break;
+
+            cascade(level + 1, shift);
+        }
+
+        ArrayDeque<Entry<T>> slot = levels[0][(int) (currentTick & (levels[0].length - 1))];
+        Entry<T> entry;
+        while ((entry = slot.poll()) != null) {
+            if (entry.expiryTick <= currentTick)
+                onExpiry.accept(entry.item);
+            else
+                place(entry);
+        }
+    }
+
+    private void cascade(int level, int shift) {
+
+        ArrayDeque<Entry<T>> slot = levels[level][(int) ((currentTick >>> shift) & (levels[level].length - 1))];
+
+        int size = slot.size();
+        for (int i = 0; i < size; i++)
+            place(slot.poll());
+    }
+
+    private void place(Entry<T> entry) {
+
+        // entries that are already due fire on the next tick
+        long expiryTick = Math.max(entry.expiryTick, currentTick + 1);
+        long delta = expiryTick - currentTick;
+
+        int shift = 0;
+        for (int level = 0; level < LEVEL_BITS.length; level++) {
+
+            int bits = LEVEL_BITS[level];
+            boolean lastLevel = level == LEVEL_BITS.length - 1;
+
+            if (delta < (1L << (shift + bits)) || lastLevel) {
+                long slotTick = lastLevel && delta >= (1L << (shift + bits)) ?
+                        currentTick + (1L << (shift + bits)) - 1 : expiryTick;
+                levels[level][(int) ((slotTick >>> shift) & ((1 << bits) - 1))].add(entry);
+                return;
+            }
+
+            shift += bits;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.xforgie.simplednsclient;
+
+/**
+ *
+ * String escaping for the JSON written by the batch resolver and the trace exporter
+ *
+ */
+
+final class JSON {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private JSON() {
+
+    }
+
+    // escapes value for use between double quotes
+    static String escape(String value) {
+
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '"' && c != '\\' && c >= 0x20) {
+                if (sb != null)
+                    sb.append(c);
+                continue;
+            }
+
+            // most values need no escaping, so the copy is only made once it is needed
+            if (sb == null)
+                sb = new StringBuilder(value.length() + 8).append(value, 0, i);
+
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else
+                sb.append("\\u00").append(HEX_DIGITS[c >>> 4]).append(HEX_DIGITS[c & 0xF]);
+        }
+
+        return sb == null ? value : sb.toString();
+    }
+}
@@ -1,8 +1,11 @@
 package com.xforgie.simplednsclient;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -23,12 +26,60 @@ public class Main {
 	
 	private static final String VERSION = "1.0.0";
 	
+	private static final int DEFAULT_CONCURRENCY = 64;
+	
 	private static enum Opt {
 		
 		SERVER(Option.builder("s").longOpt("server").
-				desc("The hostname of the root nameserver").hasArg().argName("IPV4").required().build()),
+				desc("The hostname of the root nameserver").hasArg().argName("IPV4").build()),
+		FORWARD(Option.builder("F").longOpt("forward").
+				desc("Forwards queries to these recursive resolvers instead of iterating from a root").
+				hasArg().argName("IPV4[,IPV4...]").build()),
+		PORT(Option.builder("p").longOpt("port").
+				desc("The port nameservers are queried on (default " + QueryHandler.DEFAULT_DNS_PORT + ")").
+				hasArg().argName("PORT").type(Number.class).required(false).build()),
+		STALE(Option.builder("e").longOpt("serve-stale").
+				desc("Serves records up to SECONDS past their expiry while upstream is slow or failing, " + 
+						"or 0 to disable (default " + SimpleDNSClient.DEFAULT_STALE_WINDOW_SECONDS + ")").
+				hasArg().argName("SECONDS").type(Number.class).required(false).build()),
+		PREFETCH(Option.builder("r").longOpt("prefetch").
+				desc("Refreshes popular records read in the last PERCENT of their TTL, or 0 to disable (default " + 
+						SimpleDNSClient.DEFAULT_PREFETCH_PERCENT + ")").
+				hasArg().argName("PERCENT").type(Number.class).required(false).build()),
 		TRACE(Option.builder("t").longOpt("trace").
 				desc("Enables tracing").required(false).build()),
+		TRACE_FILE(Option.builder("T").longOpt("trace-file").
+				desc("Records resolutions as spans and events, exported to FILE in the background").
+				hasArg().argName("FILE").required(false).build()),
+		TRACE_FORMAT(Option.builder().longOpt("trace-format").
+				desc("Trace file format, json (lines) or chrome (default json)").
+				hasArg().argName("FORMAT").required(false).build()),
+		TRACE_SAMPLE(Option.builder().longOpt("trace-sample").
+				desc("Percentage of resolutions traced (default 100)").
+				hasArg().argName("PERCENT").type(Number.class).required(false).build()),
+		TRACE_SLOW(Option.builder().longOpt("trace-slow").
+				desc("Only exports traced resolutions that take at least MILLIS (default 0)").
+				hasArg().argName("MILLIS").type(Number.class).required(false).build()),
+		BATCH(Option.builder("b").longOpt("batch").
+				desc("Resolves the hostnames listed in FILE (- for stdin) instead of starting the prompt").
+				hasArg().argName("FILE").required(false).build()),
+		LISTEN(Option.builder("l").longOpt("listen").
+				desc("Answers DNS queries on PORT of the loopback address instead of starting the prompt").
+				hasArg().argName("PORT").type(Number.class).required(false).build()),
+		CONCURRENCY(Option.builder("c").longOpt("concurrency").
+				desc("Number of lookups to run at once in batch or server mode (default " + DEFAULT_CONCURRENCY + ")").
+				hasArg().argName("N").type(Number.class).required(false).build()),
+		FORMAT(Option.builder("f").longOpt("format").
+				desc("Batch output format, csv or json (default csv)").
+				hasArg().argName("FORMAT").required(false).build()),
+		UDP_SIZE(Option.builder("u").longOpt("udp-size").
+				desc("EDNS(0) UDP payload size to advertise, or 0 to disable EDNS (default " + 
+						QueryHandler.DEFAULT_UDP_PAYLOAD_SIZE + ")").
+				hasArg().argName("BYTES").type(Number.class).required(false).build()),
+		SOCKETS(Option.builder().longOpt("sockets").
+				desc("Number of UDP sockets upstream queries are spread over, each with its own thread (default " + 
+						QueryHandler.DEFAULT_SOCKETS + ")").
+				hasArg().argName("N").type(Number.class).required(false).build()),
 		VERSION(Option.builder("v").longOpt("version").
 				desc("Prints the version").required(false).build()),
 		HELP(Option.builder("h").longOpt("help").
@@ -37,7 +88,7 @@ public class Main {
 		private final Option opt;
 		private Opt(Option opt) {this.opt = opt;}
 		public Option getOption() {return opt;}
-		public String getOptString() {return opt.getOpt();}
+		public String getOptString() {return opt.getOpt() != null ? opt.getOpt() : opt.getLongOpt();}
 	};
 	
 	private static boolean printHelpOrVersion(String[] args, Options completeOptions) {
@@ -77,11 +128,19 @@ public class Main {
 		return false;
 	}
 	
-	private static SimpleDNSClient parseArgs(String[] args) {
+	private static Runnable parseArgs(String[] args) {
+		
+		// iterating from a root server and forwarding to recursive resolvers are exclusive
+		OptionGroup upstreamGroup = new OptionGroup();
+		upstreamGroup.addOption(Opt.SERVER.getOption());
+		upstreamGroup.addOption(Opt.FORWARD.getOption());
+		upstreamGroup.setRequired(true);
 		
 		Options options = new Options();
+		options.addOptionGroup(upstreamGroup);
 		for (Opt opt : Opt.values())
-			options.addOption(opt.getOption());
+			if (opt != Opt.SERVER && opt != Opt.FORWARD)
+				options.addOption(opt.getOption());
 
 		try {
 			
@@ -91,30 +150,124 @@ public class Main {
 			CommandLineParser parser = new DefaultParser();
 			CommandLine cmd = parser.parse(options, args, false);
 			
+			if (cmd.hasOption(Opt.UDP_SIZE.getOptString())) {
+				int udpSize = ((Number)cmd.getParsedOptionValue(Opt.UDP_SIZE.getOptString())).intValue();
+				if (udpSize != 0 && (udpSize < 512 || udpSize > 65535))
+					throw new ParseException("UDP payload size must be 0 or between 512 and 65535");
+				QueryHandler.setUDPPayloadSize(udpSize);
+			}
+
+			if (cmd.hasOption(Opt.SOCKETS.getOptString())) {
+				int sockets = ((Number)cmd.getParsedOptionValue(Opt.SOCKETS.getOptString())).intValue();
+				if (sockets < 1 || sockets > 1024)
+					throw new ParseException("Sockets must be between 1 and 1024");
+				QueryHandler.setSockets(sockets);
+			}
+
+			if (cmd.hasOption(Opt.PORT.getOptString())) {
+				int port = ((Number)cmd.getParsedOptionValue(Opt.PORT.getOptString())).intValue();
+				if (port < 1 || port > 65535)
+					throw new ParseException("Port must be between 1 and 65535");
+				QueryHandler.setServerPort(port);
+			}
+
+			SimpleDNSClient client;
 			if (cmd.hasOption(Opt.SERVER.getOptString())) {
 				
 				InetAddress rootAddress = InetAddress.getByName(
 						((String)cmd.getParsedOptionValue(Opt.SERVER.getOptString())).trim());
-
-				return new SimpleDNSClient(rootAddress, cmd.hasOption(Opt.TRACE.getOption()));
+				client = new SimpleDNSClient(rootAddress, cmd.hasOption(Opt.TRACE.getOption()));
+			} else {
 				
+				List<InetAddress> forwarders = new ArrayList<>();
+				for (String forwarder : cmd.getOptionValue(Opt.FORWARD.getOptString()).split(","))
+					forwarders.add(InetAddress.getByName(forwarder.trim()));
+				client = new SimpleDNSClient(forwarders, cmd.hasOption(Opt.TRACE.getOption()));
+			}
+			
+			if (cmd.hasOption(Opt.PREFETCH.getOptString())) {
+				int percent = ((Number)cmd.getParsedOptionValue(Opt.PREFETCH.getOptString())).intValue();
+				if (percent < 0 || percent >= 100)
+					throw new ParseException("Prefetch percentage must be between 0 and 99");
+				client.setPrefetchPercent(percent);
 			}
 			
-		} catch (ParseException e) {
+			if (cmd.hasOption(Opt.STALE.getOptString())) {
+				long seconds = ((Number)cmd.getParsedOptionValue(Opt.STALE.getOptString())).longValue();
+				if (seconds < 0)
+					throw new ParseException("Stale window must not be negative");
+				client.setStaleWindowSeconds(seconds);
+			}
+			
+			if (cmd.hasOption(Opt.TRACE_FILE.getOptString()))
+				startTraceExporter(cmd);
+			
+			if (!cmd.hasOption(Opt.BATCH.getOptString()) && !cmd.hasOption(Opt.LISTEN.getOptString()))
+				return client::run;
+			
+			int concurrency = DEFAULT_CONCURRENCY;
+			if (cmd.hasOption(Opt.CONCURRENCY.getOptString()))
+				concurrency = ((Number)cmd.getParsedOptionValue(Opt.CONCURRENCY.getOptString())).intValue();
+			
+			if (concurrency < 1)
+				throw new ParseException("Concurrency must be at least 1");
+			
+			if (cmd.hasOption(Opt.LISTEN.getOptString())) {
+				int port = ((Number)cmd.getParsedOptionValue(Opt.LISTEN.getOptString())).intValue();
+				if (port < 1 || port > 65535)
+					throw new ParseException("Port must be between 1 and 65535");
+				return new ResolverServer(client, port, concurrency);
+			}
+			
+			BatchResolver.OutputFormat format = BatchResolver.OutputFormat.valueOf(
+					cmd.getOptionValue(Opt.FORMAT.getOptString(), "csv").trim().toUpperCase());
+			
+			return new BatchResolver(client, 
+					cmd.getOptionValue(Opt.BATCH.getOptString()).trim(), concurrency, format);
+			
+		} catch (ParseException | IllegalArgumentException e) {
 			
 			// e.printStackTrace();
 			System.out.println("Invalid argument(s). Use -h or --help for usage.");			
 		} catch (UnknownHostException e) {
 			// e.printStackTrace();
-			System.out.println("Root address hostname could not be resolved.");
+			System.out.println("Root or forwarder address could not be resolved.");
+		} catch (IOException e) {
+			System.out.println("Trace file could not be opened: " + e.getMessage());
 		}
 		
 		return null;
 	}
 	
+	// traces are written until the JVM exits
+	private static void startTraceExporter(CommandLine cmd) throws ParseException, IOException {
+		
+		TraceExporter.Format format = TraceExporter.Format.valueOf(
+				cmd.getOptionValue(Opt.TRACE_FORMAT.getOptString(), "json").trim().toUpperCase());
+		
+		if (cmd.hasOption(Opt.TRACE_SAMPLE.getOptString())) {
+			double percent = ((Number)cmd.getParsedOptionValue(Opt.TRACE_SAMPLE.getOptString())).doubleValue();
+			if (percent <= 0 || percent > 100)
+				throw new ParseException("Trace sample percentage must be above 0 and at most 100");
+			Tracer.setSamplePercent(percent);
+		}
+		
+		if (cmd.hasOption(Opt.TRACE_SLOW.getOptString())) {
+			long millis = ((Number)cmd.getParsedOptionValue(Opt.TRACE_SLOW.getOptString())).longValue();
+			if (millis < 0)
+				throw new ParseException("Slow trace threshold must not be negative");
+			Tracer.setSlowThresholdMillis(millis);
+		}
+		
+		TraceExporter exporter = new TraceExporter(
+				cmd.getOptionValue(Opt.TRACE_FILE.getOptString()).trim(), format, TraceExporter.DEFAULT_BUFFER_SIZE);
+		exporter.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(exporter::close, "trace-exporter-close"));
+	}
+	
 	public static void main(String[] args) throws SocketException {
 		
-		SimpleDNSClient client = parseArgs(args);
+		Runnable client = parseArgs(args);
 		if (client == null)
 			System.exit(1);
 
@@ -3,6 +3,7 @@ package com.xforgie.simplednsclient;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 
 import com.xforgie.simplednsclient.responseerrors.*;
@@ -11,52 +12,22 @@ public abstract class PacketHandler {
 
     private static Random random = new Random();
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // decoding happens on many threads at once, and readers keep per-packet state
+    private static ThreadLocal<PacketReader> readers = ThreadLocal.withInitial(PacketReader::new);
+
     // returns a query for the requested domain name
     public static byte[] getQueryToSend(String domainName, RecordType recordType) {
 
-        String[] labels = domainName.trim().split("\\.");
-        byte[] packet = new byte[18 + domainName.length()];
+        SearchNode node = new SearchNode(domainName.trim(), recordType);
+        ByteBuffer packet = ByteBuffer.allocate(
+                QueryEncoder.HEADER_SIZE + QueryEncoder.getEncodedQuestion(node).length);
 
         // create random transaction ID
-        byte[] queryID = new byte[2];
-        random.nextBytes(queryID);
-
-        // transaction ID
-        packet[0] = queryID[0];
-        packet[1] = queryID[1];
-        // QR, OPCODE, AA, TC, RD, RA, Z, RCODE
-        packet[2] = 0b00000000;
-        packet[3] = 0b00000000;
-        // QDCOUNT
-        packet[4] = 0b00000000;
-        packet[5] = 0b00000001;
-        // ANCOUNT
-        packet[6] = 0b00000000;
-        packet[7] = 0b00000000;
-        // NSCOUNT
-        packet[8] = 0b00000000;
-        packet[9] = 0b00000000;
-        // ARCOUNT
-        packet[10] = 0b00000000;
-        packet[11] = 0b00000000;
-        // QNAME
-        int byteCounter = 12;
-        for (int i = 0; i < labels.length; i++) {
-            packet[byteCounter++] = (byte) labels[i].length();
-            byte[] label = labels[i].getBytes();
-            for (int j = 0; j < labels[i].length(); j++) {
-                packet[byteCounter++] = label[j];
-            }
-        }
-        packet[byteCounter++] = 0b00000000;
-        // QTYPE
-        packet[byteCounter++] = (byte)((recordType.getCode() >> 8) & 0xFF);
-        packet[byteCounter++] = (byte)(recordType.getCode() & 0xFF);
-        // QCLASS
-        packet[byteCounter++] = 0b00000000;
-        packet[byteCounter]   = 0b00000001;
-
-        return packet;
+        QueryEncoder.writeQuery(packet, random.nextInt(0x10000), node);
+
+        return packet.array();
     }
 
     // retrieve transaction ID from a packet
@@ -64,26 +35,119 @@ public abstract class PacketHandler {
         return ((packet[0] & 0xff) << 8) | (packet[1] & 0xff);
     }
 
+    // retrieve transaction ID from a packet without moving the buffer position
+    public static int getIDFromPacket(ByteBuffer packet) {
+        return packet.getShort(0) & 0xffff;
+    }
+
+    // whether the TC flag of a packet is set, without moving the buffer position
+    public static boolean isTruncated(ByteBuffer packet) {
+        return (packet.get(2) & 0x02) != 0;
+    }
+
+    // the full rcode of a packet, with the upper bits from its OPT record if it has one,
+    // without moving the buffer position; a malformed packet gives its header rcode
+    public static int getRCodeFromPacket(ByteBuffer packet) {
+
+        PacketReader reader = readers.get().reset(packet);
+        int rCode = reader.getRCode();
+
+        try {
+            while (reader.nextRecord())
+                if (reader.getSection() == PacketReader.Section.ADDITIONAL &&
+                        reader.getType() == RecordType.OPT.getCode())
+                    return ((reader.getTTL() >>> 24) << 4) | rCode;
+        } catch (RuntimeException e) {
+            // decoding the packet fails on the same error later
+        }
+
+        return rCode;
+    }
+
     // Creates a DecodedPacket object with extracted information from ByteBuffer
+    // every record is materialized, as the cache keeps them: a ResourceRecord with its owner
+    // name (shared with earlier records through the reader's name memo), plus an InetAddress
+    // for A and AAAA records or a String of the data for the rest
     public static DecodedPacket decodePacket(ByteBuffer buf) throws ResponseException {
 
+        PacketReader reader = readers.get().reset(buf);
         DecodedPacket dp = new DecodedPacket();
 
         // get header
-        dp.setResponseID(getIDFromPacket(new byte[] {buf.get(), buf.get()}));
-        short temp = buf.getShort();
-        dp.setFlags((byte) (((temp & 0x780) >> 7) | ((temp & 0x8000) >> 11)));
-        dp.setOpCode(temp >> 11);
-        dp.setRCode(temp);
-        dp.setQdCount(buf.getShort());
-        dp.setAnCount(buf.getShort());
-        dp.setNsCount(buf.getShort());
-        dp.setArCount(buf.getShort());
+        int flags = reader.getFlags();
+        dp.setResponseID(reader.getID());
+        dp.setFlags((byte) (((flags & 0x780) >> 7) | ((flags & 0x8000) >> 11)));
+        dp.setOpCode(reader.getOpCode());
+        dp.setRCode(reader.getRCode());
+        dp.setQdCount(reader.getQdCount());
+        dp.setAnCount(reader.getAnCount());
+        dp.setNsCount(reader.getNsCount());
+        dp.setArCount(reader.getArCount());
+
+        // get domain name, Q type and class
+        if (reader.getQdCount() > 0) {
+            dp.setDomainName(reader.getQuestionName());
+            dp.setQType(reader.getQuestionType());
+            dp.setQClass(reader.getQuestionClass());
+        }
+
+        // get records
+        ResourceRecord[] an = new ResourceRecord[reader.getAnCount()];
+        ResourceRecord[] ns = new ResourceRecord[reader.getNsCount()];
+        ResourceRecord[] ar = new ResourceRecord[reader.getArCount()];
+        int anIndex = 0, nsIndex = 0, arIndex = 0;
+
+        while (reader.nextRecord()) {
+
+            // the OPT pseudo-record describes the message, so it is not kept as a record
+            if (reader.getSection() == PacketReader.Section.ADDITIONAL &&
+                    reader.getType() == RecordType.OPT.getCode()) {
+                readOPT(reader, dp);
+                continue;
+            }
+
+            ResourceRecord record = toResourceRecord(reader);
+            switch (reader.getSection()) {
+                case ANSWER:
+                    an[anIndex++] = record;
+                    break;
+                case AUTHORITY:
+                    ns[nsIndex++] = record;
+                    break;
+                default:
+                    ar[arIndex++] = record;
+                    break;
+            }
+        }
+
+        if (arIndex < ar.length) {
+            ar = Arrays.copyOf(ar, arIndex);
+            dp.setArCount(arIndex);
+        }
+
+        dp.setANRecords(an);
+        dp.setNSRecords(ns);
+        dp.setARRecords(ar);
+
+        // the rcode is only complete once the OPT record has been read; name errors are
+        // decoded in full, since their authority section carries the SOA that decides how
+        // long the name may be cached as nonexistent
+        boolean nameError = dp.getRCode() == 0x3;
+        if (!nameError)
+            checkRCode(dp.getRCode());
+
+        if (nameError)
+            throw new AuthoritativeNameErrorException(dp);
+
+        return dp;
+    }
+
+    // throws the ResponseException matching an error rcode
+    public static void checkRCode(int rCode) throws ResponseException {
 
         // If flags are not 0, there was an error
-        int responseFlag = dp.getRCode();
-        if (responseFlag != 0x0) {
-            switch (responseFlag) {
+        if (rCode != 0x0) {
+            switch (rCode) {
                 case 0x1:
                     // Invalid format in query sent to server
                     throw new QueryFormatException();
@@ -104,176 +168,87 @@ public abstract class PacketHandler {
                     throw new ResponseException();
             }
         }
+    }
 
-        // get domain name
-        int strLength = buf.get() & 0xFF;
-        StringBuilder domainName = new StringBuilder();
-        do {
-            for (; strLength > 0; strLength--)
-                domainName.append((char) buf.get());
-            strLength = buf.get() & 0xFF;
-            if (strLength != 0)
-                domainName.append('.');
-        } while (strLength > 0);
-        dp.setDomainName(domainName.toString());
-
-        // get Q type and class
-        dp.setQType(buf.getShort());
-        dp.setQClass(buf.getShort());
-
-        // get records
-        dp.setANRecords(getResourceRecords(buf, dp.getANCount()));
-        dp.setNSRecords(getResourceRecords(buf, dp.getNSCount()));
-        dp.setARRecords(getResourceRecords(buf, dp.getARCount()));
+    // reads the OPT record under the reader's cursor into dp (RFC 6891 section 6.1.3)
+    private static void readOPT(PacketReader reader, DecodedPacket dp) {
 
-        return dp;
+        int ttl = reader.getTTL();
+        dp.setExtendedRCode(ttl >>> 24);
+        dp.setEDNS(reader.getRecordClass(), ttl >>> 16);
     }
 
-    private static ResourceRecord[] getResourceRecords(ByteBuffer buf, int numResources) {
-        ResourceRecord[] records = new ResourceRecord[numResources];
+    // materializes the record under the reader's cursor
+    private static ResourceRecord toResourceRecord(PacketReader reader) {
+
+        String recordName = reader.getName();
+        RecordType recordType = RecordType.getByCode(reader.getType());
+        long recordTTL = reader.getTTL();
+        int rdata = reader.getRDataOffset();
+        int rdataLength = reader.getRDataLength();
+        boolean internet = reader.getRecordClass() == 0x1;
 
         try {
-        	
-            for (int i = 0; i < numResources; i++) {
-
-                String recordName = getResourceName(buf, buf.get() & 0xFF);
-                RecordType recordType = RecordType.getByCode(buf.getShort() & 0xFFFF);
-                int recordClass = buf.getShort() & 0xFFFF;
-                long recordTTL = buf.getInt();
-
-                // release record length from buffer (unused)
-                buf.getShort();
-
-                // release preference from buffer if RR is an MX record
-                if (recordType == RecordType.MX)
-                    buf.getShort();
-
-                // put InetAddresses in A and AAAA records and text records in others
-                if (recordType == RecordType.A && recordClass == 0x1) {
-                    InetAddress inet = InetAddress.getByAddress(getIPv4Address(buf));
-                    records[i] = new ResourceRecord(recordName, recordType, recordTTL, inet);
-                } else if (recordType == RecordType.AAAA && recordClass == 0x1) {
-                    InetAddress inet = InetAddress.getByAddress(getIPv6Address(buf));
-                    records[i] = new ResourceRecord(recordName, recordType, recordTTL, inet);
-                } else {
-                    String recordData = getResourceName(buf, buf.get() & 0xFF);
-                    records[i] = new ResourceRecord(recordName, recordType, recordTTL, recordData);
-                }
+            // put InetAddresses in A and AAAA records and text records in others
+            if (recordType == RecordType.A && internet && rdataLength == 4) {
+                byte[] address = new byte[4];
+                reader.getBytes(rdata, address);
+                return new ResourceRecord(recordName, recordType, recordTTL, InetAddress.getByAddress(address));
+            } else if (recordType == RecordType.AAAA && internet && rdataLength == 16) {
+                byte[] address = new byte[16];
+                reader.getBytes(rdata, address);
+                return new ResourceRecord(recordName, recordType, recordTTL, InetAddress.getByAddress(address));
             }
-            
         } catch (UnknownHostException e) {
             System.err.println("Unknown host exception in decoding packet.");
         }
 
-        return records;
-    }
-
-    private static boolean isPointer(int num) {
-        return (num & 0xc0) == 0xc0;
-    }
-
-    // follows pointers (if any) and finds domain name
-    // isPointing is a check whether or not to increment the ByteBuffer
-    private static String getResourceName(ByteBuffer buf, int nextByte) {
-        StringBuilder resName = new StringBuilder();
-
-        // If the next byte is a pointer, retrieve rest of pointer and search from that position
-        if (isPointer(nextByte)) {
-            resName.append(getResourceNameByAbsoluteToPointer(buf, nextByte));
-            return resName.toString();
+        switch (recordType) {
+            case NS:
+            case CNAME:
+                return new ResourceRecord(recordName, recordType, recordTTL, reader.getNameAt(rdata));
+            case MX:
+                // preference and exchange
+                return new ResourceRecord(recordName, recordType, recordTTL,
+                        reader.getUnsignedShort(rdata) + " " + reader.getNameAt(rdata + 2));
+            case SOA:
+                return new ResourceRecord(recordName, recordType, recordTTL, getSOAData(reader, rdata));
+            default:
+                return new ResourceRecord(recordName, recordType, recordTTL, getGenericData(reader, rdata, rdataLength));
         }
-
-        // If nextByte is not a pointer, iterate through ByteBuffer normally
-        resName.append(readLabels(buf, nextByte));
-
-        return resName.toString();
     }
 
-    // read next position via pointer
-    private static String getResourceNameByPointer(ByteBuffer buf, int pointer) {
-        StringBuilder resName = new StringBuilder();
-        int offset = (int)(((long)(buf.get(pointer) << 8) | (buf.get(pointer + 1) & 0xFF))) & 0x3FF;
-        resName.append(readLabelsByPointer(buf, offset));
-        return resName.toString();
-    }
-
-    // read next position by incrementing the buffer and then read by pointer
-    private static String getResourceNameByAbsoluteToPointer(ByteBuffer buf, int pointer) {
-        StringBuilder resName = new StringBuilder();
-        int offset = (int)(((long)(pointer << 8) | (buf.get() & 0xFF))) & 0x3FF;
-        resName.append(readLabelsByPointer(buf, offset));
-        return resName.toString();
-    }
-
-    // reads label from buffer
-    private static String readLabels(ByteBuffer buf, int nextByte) {
-        StringBuilder labelName = new StringBuilder();
+    // SOA data in presentation format: MNAME RNAME SERIAL REFRESH RETRY EXPIRE MINIMUM
+    private static String getSOAData(PacketReader reader, int rdata) {
 
-        do {
-            // read the label of size nextByte
-            for (int i = 0; i < nextByte; i++)
-                labelName.append((char) buf.get());
+        int rname = reader.skipName(rdata);
+        int fields = reader.skipName(rname);
 
-            // retrieve the next byte in the sequence
-            nextByte = buf.get() & 0xFF;
+        StringBuilder soa = new StringBuilder();
+        soa.append(reader.getNameAt(rdata)).append(' ');
+        soa.append(reader.getNameAt(rname));
+        for (int i = 0; i < 5; i++)
+            soa.append(' ').append(reader.getInt(fields + i * 4) & 0xFFFFFFFFL);
 
-            // if the next byte is a pointer, get the rest of pointer and continue search from that position
-            // otherwise, continue building the label until nextByte is 0x00
-            if (isPointer(nextByte)) {
-                labelName.append('.');
-                labelName.append(getResourceNameByAbsoluteToPointer(buf, nextByte));
-                return labelName.toString();
-            } else if (nextByte != 0)
-                labelName.append('.');
-
-        } while (nextByte > 0);
-
-        return labelName.toString();
+        return soa.toString();
     }
 
-    // read label from buffer using a pointer (not incrementing buffer)
-    private static String readLabelsByPointer(ByteBuffer buf, int pointer) {
-        StringBuilder labelName = new StringBuilder();
-        int nextByte = buf.get(pointer) & 0xFF;
-
-        // if the byte at the pointer position is a pointer, redirect at new position
-        if (isPointer(nextByte))
-            return getResourceNameByPointer(buf, pointer);
-
-        do {
-            // read the label of size nextByte
-            for (int i = 0; i < nextByte; i++)
-                    labelName.append((char) buf.get(pointer + i + 1));
-
-            // set pointer to new position after the label and get the next byte at that position
-            pointer += nextByte + 1;
-            nextByte = buf.get(pointer) & 0xFF;
-
-            // if the next byte is a pointer, get the rest of pointer (via pointer) and continue search from that position
-            // otherwise, continue building the label until nextByte is 0x00
-            if (isPointer(nextByte)) {
-                labelName.append('.');
-                labelName.append(getResourceNameByPointer(buf, pointer));
-                return labelName.toString();
-            } else if (nextByte != 0)
-                labelName.append('.');
-
-        } while (nextByte > 0);
-
-        return labelName.toString();
+    // the MINIMUM field of SOA data produced by getSOAData, which bounds negative caching
+    public static long getSOAMinimum(String soaData) {
+        return Long.parseLong(soaData.substring(soaData.lastIndexOf(' ') + 1));
     }
 
-    private static byte[] getIPv4Address(ByteBuffer buf) {
-        byte[] address = new byte[4];
-        for (int i = 0; i < 4; i++)
-            address[i] = buf.get();
-        return address;
-    }
+    // data of types that are not understood, in the RFC 3597 generic format
+    private static String getGenericData(PacketReader reader, int rdata, int rdataLength) {
+
+        StringBuilder data = new StringBuilder(rdataLength * 2 + 10).append("\\# ").append(rdataLength);
+        if (rdataLength > 0)
+            data.append(' ');
+        for (int i = 0; i < rdataLength; i++) {
+            int b = reader.getUnsignedByte(rdata + i);
+            data.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0xF]);
+        }
 
-    private static byte[] getIPv6Address(ByteBuffer buf) {
-        byte[] address = new byte[16];
-        for (int i = 0; i < 16; i++)
-            address[i] = buf.get();
-        return address;
+        return data.toString();
     }
 }
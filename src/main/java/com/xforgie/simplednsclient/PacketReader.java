@@ -0,0 +1,314 @@
+package com.xforgie.simplednsclient;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *
+ * A reusable cursor over a DNS message in a ByteBuffer. Header fields and the type, class,
+ * TTL and RDATA bounds of each record are read in place without allocating; names are
+ * only decoded when asked for, and every decoded suffix is remembered by its offset so
+ * compression pointers to it are never walked twice in the same packet.
+ *
+ * The buffer is only read with absolute gets, so its position and limit are left alone.
+ * A reader is not thread-safe; use one per thread and reset it for every packet.
+ *
+ */
+
+public class PacketReader {
+
+    public enum Section {
+        ANSWER, AUTHORITY, ADDITIONAL
+    }
+
+    public static final int HEADER_SIZE = 12;
+
+    // more pointers than this in one name can only be a loop
+    private static final int MAX_POINTERS = 64;
+
+    private ByteBuffer buf;
+    private int limit;
+
+    // the record the cursor is on
+    private Section section;
+    private int remainingInSection;
+    private int nextRecordOffset;
+    private int nameOffset;
+    private int type;
+    private int recordClass;
+    private int ttl;
+    private int rdataOffset;
+    private int rdataLength;
+
+    // decoded names indexed by offset, for this packet only; memoOffsets lists the
+    // slots in use so they can be cleared without touching the whole table
+    private String[] memoNames = new String[512];
+    private int[] memoOffsets = new int[32];
+    private int memoSize;
+
+    private final byte[] labelBuffer = new byte[63];
+
+    public PacketReader reset(ByteBuffer buf) {
+
+        this.buf = buf;
+        this.limit = buf.limit();
+
+        if (limit < HEADER_SIZE)
+            throw new IndexOutOfBoundsException("Packet shorter than a DNS header");
+
+        for (int i = 0; i < memoSize; i++)
+            memoNames[memoOffsets[i]] = null;
+        memoSize = 0;
+
+        if (memoNames.length < limit)
+            memoNames = new String[limit];
+
+        section = null;
+        remainingInSection = 0;
+        nextRecordOffset = getQuestionEnd();
+        return this;
+    }
+
+    public int getID() {
+        return getUnsignedShort(0);
+    }
+
+    // QR, OPCODE, AA, TC, RD, RA, Z and RCODE
+    public int getFlags() {
+        return getUnsignedShort(2);
+    }
+
+    public boolean isResponse() {
+        return (getFlags() & 0x8000) != 0;
+    }
+
+    public boolean isAuthoritative() {
+        return (getFlags() & 0x0400) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (getFlags() & 0x0200) != 0;
+    }
+
+    public int getOpCode() {
+        return (getFlags() >> 11) & 0xF;
+    }
+
+    public int getRCode() {
+        return getFlags() & 0xF;
+    }
+
+    public int getQdCount() {
+        return getUnsignedShort(4);
+    }
+
+    public int getAnCount() {
+        return getUnsignedShort(6);
+    }
+
+    public int getNsCount() {
+        return getUnsignedShort(8);
+    }
+
+    public int getArCount() {
+        return getUnsignedShort(10);
+    }
+
+    // the name, type and class of the first question
+    public String getQuestionName() {
+        return getNameAt(HEADER_SIZE);
+    }
+
+    public int getQuestionType() {
+        return getUnsignedShort(skipName(HEADER_SIZE));
+    }
+
+    public int getQuestionClass() {
+        return getUnsignedShort(skipName(HEADER_SIZE) + 2);
+    }
+
+    // offset just past the question section
+    public int getQuestionEnd() {
+
+        int offset = HEADER_SIZE;
+        for (int i = getQdCount(); i > 0; i--)
+            offset = skipName(offset) + 4;
+
+        return offset;
+    }
+
+    // moves the cursor to the next record of the answer, authority or additional section,
+    // returning false once all of them have been read
+    public boolean nextRecord() {
+
+        while (remainingInSection == 0) {
+            if (section == Section.ADDITIONAL)
+                return false;
+
+            section = section == null ? Section.ANSWER : Section.values()[section.ordinal() + 1];
+            remainingInSection = getSectionCount(section);
+        }
+
+        remainingInSection--;
+
+        nameOffset = nextRecordOffset;
+        int offset = skipName(nameOffset);
+
+        type = getUnsignedShort(offset);
+        recordClass = getUnsignedShort(offset + 2);
+        ttl = getInt(offset + 4);
+        rdataLength = getUnsignedShort(offset + 8);
+        rdataOffset = offset + 10;
+
+        nextRecordOffset = rdataOffset + rdataLength;
+        if (nextRecordOffset > limit)
+            throw new IndexOutOfBoundsException("Record data runs past the end of the packet");
+
+        return true;
+    }
+
+    private int getSectionCount(Section section) {
+        switch (section) {
+            case ANSWER:
+                return getAnCount();
+            case AUTHORITY:
+                return getNsCount();
+            default:
+                return getArCount();
+        }
+    }
+
+    public Section getSection() {
+        return section;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getRecordClass() {
+        return recordClass;
+    }
+
+    // the raw 32 bit TTL field, which is signed in practice
+    public int getTTL() {
+        return ttl;
+    }
+
+    public int getRDataOffset() {
+        return rdataOffset;
+    }
+
+    public int getRDataLength() {
+        return rdataLength;
+    }
+
+    // the owner name of the current record
+    public String getName() {
+        return getNameAt(nameOffset);
+    }
+
+    public int getNameOffset() {
+        return nameOffset;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buf;
+    }
+
+    public int getUnsignedByte(int offset) {
+        checkBounds(offset, 1);
+        return buf.get(offset) & 0xFF;
+    }
+
+    public int getUnsignedShort(int offset) {
+        checkBounds(offset, 2);
+        return buf.getShort(offset) & 0xFFFF;
+    }
+
+    public int getInt(int offset) {
+        checkBounds(offset, 4);
+        return buf.getInt(offset);
+    }
+
+    public void getBytes(int offset, byte[] dst) {
+        checkBounds(offset, dst.length);
+        for (int i = 0; i < dst.length; i++)
+            dst[i] = buf.get(offset + i);
+    }
+
+    // offset just past the (possibly compressed) name at offset
+    public int skipName(int offset) {
+
+        while (true) {
+            int length = getUnsignedByte(offset);
+            if (isPointer(length))
+                return offset + 2;
+            if (length == 0)
+                return offset + 1;
+            offset += length + 1;
+        }
+    }
+
+    // the dotted name at offset, following compression pointers; the root is ""
+    public String getNameAt(int offset) {
+        return decodeName(offset, 0);
+    }
+
+    private String decodeName(int offset, int pointers) {
+
+        int length = getUnsignedByte(offset);
+
+        String name = getMemo(offset);
+        if (name != null)
+            return name;
+
+        if (isPointer(length)) {
+            if (pointers >= MAX_POINTERS)
+                throw new IndexOutOfBoundsException("Compression pointer loop");
+            name = decodeName(((length & 0x3F) << 8) | getUnsignedByte(offset + 1), pointers + 1);
+        } else if (length == 0) {
+            name = "";
+        } else {
+            if (length > labelBuffer.length)
+                throw new IndexOutOfBoundsException("Label longer than 63 bytes");
+
+            // the suffix first, since decoding it reuses labelBuffer
+            String rest = decodeName(offset + 1 + length, pointers);
+
+            checkBounds(offset + 1, length);
+            for (int i = 0; i < length; i++)
+                labelBuffer[i] = buf.get(offset + 1 + i);
+
+            String label = new String(labelBuffer, 0, length, StandardCharsets.ISO_8859_1);
+            name = rest.isEmpty() ? label : label + '.' + rest;
+        }
+
+        putMemo(offset, name);
+        return name;
+    }
+
+    // offsets are always inside the packet, as getUnsignedByte checked them
+    private String getMemo(int offset) {
+        return memoNames[offset];
+    }
+
+    private void putMemo(int offset, String name) {
+
+        if (memoSize == memoOffsets.length)
+            memoOffsets = Arrays.copyOf(memoOffsets, memoSize * 2);
+
+        memoOffsets[memoSize++] = offset;
+        memoNames[offset] = name;
+    }
+
+    private void checkBounds(int offset, int length) {
+        if (offset < 0 || offset + length > limit)
+            throw new IndexOutOfBoundsException("Read past the end of the packet");
+    }
+
+    private static boolean isPointer(int num) {
+        return (num & 0xc0) == 0xc0;
+    }
+}
@@ -0,0 +1,113 @@
+package com.xforgie.simplednsclient;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ *
+ * Runs background refreshes of cache entries on a few low priority threads. Requests
+ * are rate limited by a token bucket and dropped rather than queued once the limit or
+ * the queue is reached, so refreshes never crowd out the lookups users are waiting on.
+ *
+ */
+
+public class Prefetcher {
+
+    private static final int MAX_QUEUED = 256;
+
+    private final Predicate<SearchNode> refresh;
+    private final ThreadPoolExecutor executor;
+    private final Map<SearchNode, Boolean> pending = new ConcurrentHashMap<>();
+
+    // token bucket, guarded by this
+    private final double maxPerSecond;
+    private double tokens;
+    private long lastRefill = CoarseClock.currentTimeMillis();
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder refreshed = new LongAdder();
+
+    // refresh is called with every node to be refreshed, at most maxPerSecond times a second,
+    // and returns whether it got a fresh answer
+    public Prefetcher(Predicate<SearchNode> refresh, double maxPerSecond, int threads) {
+
+        this.refresh = refresh;
+        this.maxPerSecond = maxPerSecond;
+        this.tokens = maxPerSecond;
+
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+                    Thread t = new Thread(r, "prefetch");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                });
+    }
+
+    // schedules a refresh of node unless one is already pending or the rate limit is hit
+    public void request(SearchNode node) {
+
+        if (pending.putIfAbsent(node, Boolean.TRUE) != null)
+            return;
+
+        if (!tryAcquire()) {
+            pending.remove(node);
+            dropped.increment();
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    if (refresh.test(node))
+                        refreshed.increment();
+                } finally {
+                    pending.remove(node);
+                }
+            });
+            started.increment();
+        } catch (RejectedExecutionException e) {
+            pending.remove(node);
+            dropped.increment();
+        }
+    }
+
+    private synchronized boolean tryAcquire() {
+
+        long now = CoarseClock.currentTimeMillis();
+        tokens = Math.min(maxPerSecond, tokens + (now - lastRefill) * maxPerSecond / 1000);
+        lastRefill = now;
+
+        if (tokens < 1)
+            return false;
+
+        tokens--;
+        return true;
+    }
+
+    // refreshes that were started
+    public long getStarted() {
+        return started.sum();
+    }
+
+    // refreshes that got a fresh answer
+    public long getRefreshed() {
+        return refreshed.sum();
+    }
+
+    // refreshes that were dropped by the rate limit or a full queue
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,181 @@
+package com.xforgie.simplednsclient;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * Writes queries straight into ByteBuffers. The wire format of every question is
+ * cached by SearchNode, so encoding a query is a header write and a copy, and a
+ * query whose transaction ID is already in use only has to rewrite the ID.
+ *
+ */
+
+public abstract class QueryEncoder {
+
+    public static final int HEADER_SIZE = 12;
+    public static final int MAX_LABEL_LENGTH = 63;
+    public static final int MAX_NAME_LENGTH = 255;
+
+    // the largest question: a maximum length QNAME plus QTYPE and QCLASS
+    public static final int MAX_QUESTION_SIZE = MAX_NAME_LENGTH + 4;
+
+    // an EDNS(0) OPT pseudo-record with no options: root name, type, class, TTL and RDLENGTH
+    public static final int OPT_RECORD_SIZE = 11;
+
+    // recursion desired, for queries to recursive resolvers
+    public static final int FLAG_RD = 0x0100;
+
+    // the most a DNS message may be over UDP without EDNS (RFC 1035 section 4.2.1)
+    public static final int MIN_UDP_PAYLOAD_SIZE = 512;
+
+    // the cache is dropped wholesale when it grows past this, so it cannot grow without bound
+    private static final int MAX_CACHED_QUESTIONS = 1 << 16;
+
+    private static Map<SearchNode, byte[]> encodedQuestions = new ConcurrentHashMap<>();
+
+    // writes a complete query for node into dst at its position, which is advanced past it,
+    // and returns the offset just past the question
+    public static int writeQuery(ByteBuffer dst, int id, SearchNode node) {
+        return writeQuery(dst, id, node, 0);
+    }
+
+    // as above, with an OPT record advertising udpPayloadSize (RFC 6891) unless it is 0
+    public static int writeQuery(ByteBuffer dst, int id, SearchNode node, int udpPayloadSize) {
+        return writeQuery(dst, id, 0, node, udpPayloadSize);
+    }
+
+    // as above, with header flags such as FLAG_RD
+    public static int writeQuery(ByteBuffer dst, int id, int flags, SearchNode node, int udpPayloadSize) {
+
+        byte[] question = getEncodedQuestion(node);
+        int start = dst.position();
+
+        dst.putShort((short) id);
+        // QR, OPCODE, AA, TC, RD, RA, Z, RCODE
+        dst.putShort((short) flags);
+        // QDCOUNT, ANCOUNT, NSCOUNT, ARCOUNT
+        dst.putShort((short) 1);
+        dst.putShort((short) 0);
+        dst.putShort((short) 0);
+        dst.putShort((short) (udpPayloadSize > 0 ? 1 : 0));
+        // QNAME, QTYPE, QCLASS
+        dst.put(question);
+
+        int questionEnd = dst.position() - start;
+
+        if (udpPayloadSize > 0)
+            writeOPT(dst, udpPayloadSize);
+
+        return questionEnd;
+    }
+
+    private static void writeOPT(ByteBuffer dst, int udpPayloadSize) {
+
+        // the root name
+        dst.put((byte) 0);
+        dst.putShort((short) RecordType.OPT.getCode());
+        // the class field carries the payload size
+        dst.putShort((short) Math.max(udpPayloadSize, MIN_UDP_PAYLOAD_SIZE));
+        // extended RCODE, version 0 and no flags in place of the TTL
+        dst.putInt(0);
+        // no options
+        dst.putShort((short) 0);
+    }
+
+    // rewrites the transaction ID of the query starting at offset 0 of packet
+    public static void rewriteID(ByteBuffer packet, int id) {
+        packet.putShort(0, (short) id);
+    }
+
+    // compares the question of response to that of query, which ends at questionEnd;
+    // names are compared case-insensitively
+    public static boolean sameQuestion(ByteBuffer query, int questionEnd, ByteBuffer response) {
+
+        // QDCOUNT must match
+        if (query.getShort(4) != response.getShort(4))
+            return false;
+
+        if (response.limit() < questionEnd)
+            return false;
+
+        for (int i = HEADER_SIZE; i < questionEnd; i++)
+            if (toLowerCase(query.get(i)) != toLowerCase(response.get(i)))
+                return false;
+
+        return true;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    // QNAME, QTYPE and QCLASS (IN) for node
+    public static byte[] getEncodedQuestion(SearchNode node) {
+
+        byte[] question = encodedQuestions.get(node);
+        if (question != null)
+            return question;
+
+        question = encodeQuestion(node);
+
+        if (encodedQuestions.size() >= MAX_CACHED_QUESTIONS)
+            encodedQuestions.clear();
+        encodedQuestions.put(node, question);
+
+        return question;
+    }
+
+    private static byte[] encodeQuestion(SearchNode node) {
+
+        String name = node.getHostName().trim();
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        if (name.endsWith("."))
+            throw new IllegalArgumentException("Empty label in domain name: " + name);
+
+        // every label gains a length byte, and the name ends with the root label
+        int nameLength = name.isEmpty() ? 1 : name.length() + 2;
+        if (nameLength > MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("Domain name longer than 255 bytes: " + name);
+
+        byte[] question = new byte[nameLength + 4];
+        int position = 0;
+
+        int labelStart = 0;
+        while (labelStart < name.length()) {
+
+            int labelEnd = name.indexOf('.', labelStart);
+            if (labelEnd < 0)
+                labelEnd = name.length();
+
+            int labelLength = labelEnd - labelStart;
+            if (labelLength == 0)
+                throw new IllegalArgumentException("Empty label in domain name: " + name);
+            if (labelLength > MAX_LABEL_LENGTH)
+                throw new IllegalArgumentException("Label longer than 63 bytes in domain name: " + name);
+
+            question[position++] = (byte) labelLength;
+            for (int i = labelStart; i < labelEnd; i++) {
+                // one byte per character only holds for ASCII, anything else needs punycode first
+                char c = name.charAt(i);
+                if (c > 0x7F)
+                    throw new IllegalArgumentException("Non-ASCII character in domain name: " + name);
+                question[position++] = (byte) c;
+            }
+
+            labelStart = labelEnd + 1;
+        }
+        question[position++] = 0;
+
+        // QTYPE
+        question[position++] = (byte) ((node.getType().getCode() >> 8) & 0xFF);
+        question[position++] = (byte) (node.getType().getCode() & 0xFF);
+        // QCLASS
+        question[position++] = 0;
+        question[position] = 1;
+
+        return question;
+    }
+}
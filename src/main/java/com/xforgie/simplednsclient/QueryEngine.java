@@ -0,0 +1,336 @@
+package com.xforgie.simplednsclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Multiplexes outstanding queries over a single non-blocking DatagramChannel.
+ * Replies are matched to their waiters by transaction ID, source address and question;
+ * anything else is dropped.
+ *
+ */
+
+public class QueryEngine implements Closeable {
+
+    private static final int MAX_TRANSACTION_IDS = 0x10000;
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    // random IDs tried before a query gives up on finding a free one
+    private static final int MAX_ID_ATTEMPTS = 64;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final ByteBuffer receiveBuffer;
+    private final int udpPayloadSize;
+    private final Thread eventLoop;
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final Queue<PendingQuery> sendQueue = new ConcurrentLinkedQueue<>();
+    // transaction IDs must be unpredictable to off-path attackers (RFC 5452 section 9.2)
+    private final SecureRandom random = new SecureRandom();
+    private final BufferPool queryBuffers = new BufferPool(QueryEncoder.HEADER_SIZE +
+            QueryEncoder.MAX_QUESTION_SIZE + QueryEncoder.OPT_RECORD_SIZE, true, MAX_POOLED_BUFFERS);
+
+    private volatile boolean running = true;
+
+    // every query goes through the send queue, as when the socket buffer is full; for tests
+    private volatile boolean queueAll;
+
+    // an outstanding query waiting on its reply
+    private static class PendingQuery {
+
+        private final InetSocketAddress server;
+        private final ByteBuffer query;
+        private final int questionEnd;
+        private final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        private volatile ScheduledFuture<?> timeout;
+        private int id;
+
+        // guarded by this; set once the buffer has gone back to the pool
+        private boolean released;
+
+        private PendingQuery(InetSocketAddress server, ByteBuffer query, int questionEnd) {
+            this.server = server;
+            this.query = query;
+            this.questionEnd = questionEnd;
+        }
+    }
+
+    // queries advertise udpPayloadSize in an EDNS(0) OPT record and replies up to that size
+    // are received whole; 0 sends plain queries and receives 512 byte replies
+    public QueryEngine(int udpPayloadSize) throws IOException {
+        this(udpPayloadSize, "query-engine");
+    }
+
+    // as above, with threadName naming the event loop thread
+    public QueryEngine(int udpPayloadSize, String threadName) throws IOException {
+
+        this.udpPayloadSize = udpPayloadSize;
+
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        receiveBuffer = ByteBuffer.allocateDirect(Math.max(udpPayloadSize, QueryEncoder.MIN_UDP_PAYLOAD_SIZE));
+
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, threadName + "-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+
+        eventLoop = new Thread(this::runEventLoop, threadName);
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+    public int getOutstandingQueries() {
+        return pending.size();
+    }
+
+    void setQueueAll(boolean queueAll) {
+        this.queueAll = queueAll;
+    }
+
+    // sends a query for node to server; the returned future completes with the matching reply,
+    // or exceptionally with a SocketTimeoutException if none arrives within timeoutMillis
+    public CompletableFuture<ByteBuffer> query(InetSocketAddress server, SearchNode node, long timeoutMillis) {
+        return query(server, node, 0, timeoutMillis);
+    }
+
+    // as above, with header flags such as QueryEncoder.FLAG_RD
+    public CompletableFuture<ByteBuffer> query(InetSocketAddress server, SearchNode node, int flags,
+            long timeoutMillis) {
+
+        PendingQuery query;
+        try {
+            query = register(server, node, flags);
+        } catch (IllegalArgumentException e) {
+            CompletableFuture<ByteBuffer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        if (query == null) {
+            CompletableFuture<ByteBuffer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("No free transaction IDs"));
+            return failed;
+        }
+
+        query.result.whenComplete((response, e) -> {
+            pending.remove(query.id, query);
+            ScheduledFuture<?> timeout = query.timeout;
+            if (timeout != null)
+                timeout.cancel(false);
+            release(query);
+        });
+
+        query.timeout = timer.schedule(
+                () -> query.result.completeExceptionally(new SocketTimeoutException()),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+
+        send(query);
+        return query.result;
+    }
+
+    // encodes the query into a pooled buffer and reserves a transaction ID that is not in use;
+    // on a collision only the ID is rewritten; returns null if no free ID turned up, as when
+    // nearly all of them are taken
+    private PendingQuery register(InetSocketAddress server, SearchNode node, int flags) {
+
+        if (pending.size() >= MAX_TRANSACTION_IDS)
+            return null;
+
+        ByteBuffer packet = queryBuffers.acquire();
+        int id = random.nextInt(MAX_TRANSACTION_IDS);
+        int questionEnd;
+        try {
+            questionEnd = QueryEncoder.writeQuery(packet, id, flags, node, udpPayloadSize);
+        } catch (RuntimeException e) {
+            queryBuffers.release(packet);
+            throw e;
+        }
+        packet.flip();
+
+        PendingQuery query = new PendingQuery(server, packet, questionEnd);
+        for (int attempt = 0; attempt < MAX_ID_ATTEMPTS; attempt++) {
+            query.id = id;
+            if (pending.putIfAbsent(id, query) == null)
+                return query;
+
+            id = random.nextInt(MAX_TRANSACTION_IDS);
+            QueryEncoder.rewriteID(packet, id);
+        }
+
+        queryBuffers.release(packet);
+        return null;
+    }
+
+    private void send(PendingQuery query) {
+
+        try {
+            // try to send directly from the caller; hand off to the event loop if the socket is full
+            if (!queueAll && sendQueue.isEmpty() && sendPacket(query))
+                return;
+
+            sendQueue.add(query);
+            selector.wakeup();
+
+        } catch (IOException e) {
+            query.result.completeExceptionally(e);
+        }
+    }
+
+    // returns false if the socket buffer is full; queries that already completed are skipped,
+    // as their buffer may belong to another query by now
+    private boolean sendPacket(PendingQuery query) throws IOException {
+
+        synchronized (query) {
+            if (query.released)
+                return true;
+
+            query.query.rewind();
+            return channel.send(query.query, query.server) > 0;
+        }
+    }
+
+    private void release(PendingQuery query) {
+
+        synchronized (query) {
+            query.released = true;
+        }
+        queryBuffers.release(query.query);
+    }
+
+    private void runEventLoop() {
+
+        SelectionKey key = channel.keyFor(selector);
+
+        while (running) {
+
+            try {
+                key.interestOps(sendQueue.isEmpty() ?
+                        SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey selected = keys.next();
+                    keys.remove();
+
+                    if (selected.isReadable())
+                        receiveAll();
+                }
+
+                flushSendQueue();
+
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (!running)
+                    break;
+            }
+        }
+    }
+
+    // sends queued queries until the socket buffer is full; a query that cannot be sent at
+    // all, such as one to an unreachable network, fails alone instead of holding up the rest
+    private void flushSendQueue() throws ClosedChannelException {
+
+        PendingQuery query;
+        while ((query = sendQueue.peek()) != null) {
+
+            if (query.result.isDone()) {
+                sendQueue.poll();
+                continue;
+            }
+
+            try {
+                if (!sendPacket(query))
+                    return;
+            } catch (ClosedChannelException e) {
+                throw e;
+            } catch (IOException e) {
+                query.result.completeExceptionally(e);
+            }
+
+            sendQueue.poll();
+        }
+    }
+
+    private void receiveAll() throws IOException {
+
+        while (true) {
+
+            receiveBuffer.clear();
+            SocketAddress source = channel.receive(receiveBuffer);
+            if (source == null)
+                return;
+
+            receiveBuffer.flip();
+            dispatch(source, receiveBuffer);
+        }
+    }
+
+    // hands a reply to its waiter, dropping late, spoofed or mismatched replies
+    private void dispatch(SocketAddress source, ByteBuffer response) {
+
+        if (response.remaining() < 12)
+            return;
+
+        int id = response.getShort(0) & 0xFFFF;
+        PendingQuery query = pending.get(id);
+        if (query == null || !query.server.equals(source) || !QueryEncoder.sameQuestion(query.query, query.questionEnd, response))
+            return;
+
+        byte[] copy = new byte[response.remaining()];
+        response.get(copy);
+
+        if (pending.remove(id, query))
+            query.result.complete(ByteBuffer.wrap(copy));
+    }
+
+    @Override
+    public void close() {
+
+        running = false;
+        selector.wakeup();
+
+        try {
+            eventLoop.join(1000);
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            // nothing useful to do while closing
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        timer.shutdownNow();
+        pending.values().forEach(query -> query.result.completeExceptionally(new ClosedChannelException()));
+    }
+}
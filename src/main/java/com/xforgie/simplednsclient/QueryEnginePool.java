@@ -0,0 +1,75 @@
+package com.xforgie.simplednsclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *
+ * Spreads upstream queries over several QueryEngines, each with its own socket, source
+ * port and event loop thread, so the packet rate is not capped by one receive queue and
+ * one thread. Each query goes to the less busy of two engines picked at random, which
+ * keeps the load even without any shared counter, and makes the source port of a query
+ * one more thing an off-path attacker has to guess.
+ *
+ */
+
+public class QueryEnginePool implements Closeable {
+
+    private final QueryEngine[] engines;
+
+    public QueryEnginePool(int sockets, int udpPayloadSize) throws IOException {
+
+        if (sockets < 1)
+            throw new IllegalArgumentException("At least one socket is needed");
+
+        engines = new QueryEngine[sockets];
+        try {
+            for (int i = 0; i < sockets; i++)
+                engines[i] = new QueryEngine(udpPayloadSize, "query-engine-" + i);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int getSockets() {
+        return engines.length;
+    }
+
+    public int getOutstandingQueries() {
+
+        int outstanding = 0;
+        for (QueryEngine engine : engines)
+            outstanding += engine.getOutstandingQueries();
+        return outstanding;
+    }
+
+    // as QueryEngine.query
+    public CompletableFuture<ByteBuffer> query(InetSocketAddress server, SearchNode node, int flags,
+            long timeoutMillis) {
+        return pick().query(server, node, flags, timeoutMillis);
+    }
+
+    private QueryEngine pick() {
+
+        if (engines.length == 1)
+            return engines[0];
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        QueryEngine first = engines[random.nextInt(engines.length)];
+        QueryEngine second = engines[random.nextInt(engines.length)];
+
+        return first.getOutstandingQueries() <= second.getOutstandingQueries() ? first : second;
+    }
+
+    @Override
+    public void close() {
+        for (QueryEngine engine : engines)
+            if (engine != null)
+                engine.close();
+    }
+}
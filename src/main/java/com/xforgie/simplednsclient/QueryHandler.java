@@ -3,127 +3,621 @@ package com.xforgie.simplednsclient;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.IllegalBlockingModeException;
+import java.nio.BufferUnderflowException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.xforgie.simplednsclient.responseerrors.*;
 
 public class QueryHandler {
 
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static final int QUERY_MAX_SIZE = 512;
-    private static DatagramSocket socket;
+    public static final int DEFAULT_DNS_PORT = 53;
+    // large enough for most referrals with full glue, small enough to avoid IP fragmentation
+    public static final int DEFAULT_UDP_PAYLOAD_SIZE = 1232;
+    public static final int DEFAULT_SOCKETS = 1;
+    private static final long TCP_QUERY_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_HEDGED_SERVERS = 3;
+    private static final long INITIAL_HEDGE_DELAY_MILLIS = 400;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 20;
+    private static final int MAX_TCP_CONNECTIONS_PER_SERVER = 2;
+    private static final int MAX_PIPELINED_TCP_QUERIES = 64;
+    private static final long TCP_IDLE_TIMEOUT_MILLIS = 10000;
+    private static QueryEnginePool engine;
+    private static TcpConnectionPool tcpPool;
+    private static int serverPort = DEFAULT_DNS_PORT;
     private static boolean tracing = false;
+    private static int udpPayloadSize = DEFAULT_UDP_PAYLOAD_SIZE;
+    private static int sockets = DEFAULT_SOCKETS;
+
+    private static ServerStats serverStats = ServerStats.getServerStats();
+
+    private static Map<InFlightKey, SharedQuery> inFlightQueries = new ConcurrentHashMap<>();
+    private static LongAdder coalescedQueries = new LongAdder();
+    private static LongAdder udpQueries = new LongAdder();
+    private static LongAdder tcpQueries = new LongAdder();
+
+    private static class InFlightKey {
+
+        private final SearchNode node;
+        private final InetAddress server;
+        private final int flags;
+
+        private InFlightKey(SearchNode node, InetAddress server, int flags) {
+            this.node = node;
+            this.server = server;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o)
+                return true;
+
+            if (o == null || getClass() != o.getClass())
+                return false;
+
+            InFlightKey key = (InFlightKey) o;
+
+            return node.equals(key.node) && server.equals(key.server) && flags == key.flags;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * node.hashCode() + server.hashCode()) + flags;
+        }
+    }
+
+    // an upstream query shared by every caller asking the same server the same question;
+    // it is only cancelled once all of them have cancelled their view of it
+    private static class SharedQuery {
+
+        private final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        // the full rcode of the reply, parsed once before result completes
+        private volatile int rCode;
+        private volatile CompletableFuture<ByteBuffer> query;
+        private volatile boolean overTcp;
+        private int waiters;
+        private boolean abandoned;
+
+        // returns a view of the result for one more caller, or null if the query was abandoned
+        private synchronized CompletableFuture<ByteBuffer> attach() {
+
+            if (abandoned)
+                return null;
+
+            waiters++;
+
+            CompletableFuture<ByteBuffer> view = new CompletableFuture<>();
+            view.whenComplete((response, e) -> {
+                if (view.isCancelled())
+                    detach();
+            });
+
+            // every view reads its own copy of the buffer position
+            result.whenComplete((response, e) -> {
+                if (response != null)
+                    view.complete(response.duplicate());
+                else
+                    view.completeExceptionally(e);
+            });
+
+            return view;
+        }
+
+        private void detach() {
+
+            synchronized (this) {
+                if (--waiters > 0 || result.isDone())
+                    return;
+                abandoned = true;
+            }
+
+            CompletableFuture<ByteBuffer> started = query;
+            if (started != null)
+                started.cancel(false);
+        }
+    }
+
+    // the outcome of one query sent to one server
+    private static class Reply {
+
+        private final InetAddress server;
+        private final ByteBuffer response;
+        // only meaningful with a response
+        private final int rCode;
+        private final boolean timedOut;
+
+        private Reply(InetAddress server, ByteBuffer response, int rCode, boolean timedOut) {
+            this.server = server;
+            this.response = response;
+            this.rCode = rCode;
+            this.timedOut = timedOut;
+        }
+
+        // an answer, referral or name error, as opposed to a server failure
+        private boolean isUsable() {
+            return response != null && (rCode == 0x0 || rCode == 0x3);
+        }
+    }
     
     private static Cache cache = Cache.getCache();
+
+    private static final String[] RCODE_NAMES = {"NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
     
-    public static void openSocket() throws SocketException {
-        socket = new DatagramSocket();
-        socket.setSoTimeout(5000);
+    public static void openSocket() throws IOException {
+        engine = new QueryEnginePool(sockets, udpPayloadSize);
+        tcpPool = new TcpConnectionPool(MAX_TCP_CONNECTIONS_PER_SERVER, MAX_PIPELINED_TCP_QUERIES,
+                TCP_IDLE_TIMEOUT_MILLIS, udpPayloadSize);
     }
 
     public static void closeSocket() {
-        socket.close();
+        engine.close();
+        tcpPool.close();
     }
 
     public static void setTracing(boolean tracing) {
         QueryHandler.tracing = tracing;
     }
 
-    public static Set<ResourceRecord> sendQueryAndCacheResponse(
-    		InetAddress server, SearchNode node) throws QueryHaltException {
+    // the port every nameserver is queried on; takes effect for queries sent afterwards
+    public static void setServerPort(int serverPort) {
+        QueryHandler.serverPort = serverPort;
+    }
+
+    // the EDNS(0) UDP payload size advertised by queries, or 0 to send them without EDNS;
+    // takes effect when the socket is opened
+    public static void setUDPPayloadSize(int udpPayloadSize) {
+        QueryHandler.udpPayloadSize = udpPayloadSize;
+    }
+
+    // the number of UDP sockets queries are spread over, each with its own event loop thread;
+    // takes effect when the socket is opened
+    public static void setSockets(int sockets) {
+        QueryHandler.sockets = sockets;
+    }
 
-        int numAttempts = 2; // decreases by 1 on a timeout
+    // queries the first server and hedges to the next ones in order whenever the outstanding
+    // queries have not produced a usable answer within the hedge delay; the first usable answer
+    // wins and the remaining queries are cancelled
+    // zone is the zone the servers are authoritative for ("" for the root), and bounds which
+    // referrals and glue from their answers are trusted
+    // each query times out after its server's retransmission timeout; when every server timed
+    // out, all of them are asked again as long as the resolution's retry budget lasts
+    public static Set<ResourceRecord> sendQueryAndCacheResponse(List<InetAddress> servers, 
+    		SearchNode node, String zone, RetryBudget retryBudget) throws QueryHaltException {
+        return queryAndCacheResponse(serverStats.order(servers), node, zone, 0, retryBudget);
+    }
+
+    // asks recursive resolvers for node, with recursion desired; the first one is picked at
+    // random weighted by its latency, so the load is spread over all of them, and the others
+    // are hedged and failed over to as above; the whole answer is trusted and cached
+    public static Set<ResourceRecord> forwardQueryAndCacheResponse(List<InetAddress> forwarders,
+            SearchNode node, RetryBudget retryBudget) throws QueryHaltException {
+        return queryAndCacheResponse(serverStats.orderByWeight(forwarders), node, "", QueryEncoder.FLAG_RD, retryBudget);
+    }
 
-        // build a query packet
-        String serverName = node.getHostName().trim();
-        byte[] queryPacket = PacketHandler.getQueryToSend(serverName, node.getType());
-        byte[] message = new byte[QUERY_MAX_SIZE];
-        int id = PacketHandler.getIDFromPacket(queryPacket);
+    private static Set<ResourceRecord> queryAndCacheResponse(List<InetAddress> ordered,
+            SearchNode node, String zone, int flags, RetryBudget retryBudget) throws QueryHaltException {
+
+        List<InetAddress> candidates = ordered.subList(0, Math.min(ordered.size(), MAX_HEDGED_SERVERS));
+
+        while (!candidates.isEmpty()) {
+
+            BlockingQueue<Reply> replies = new LinkedBlockingQueue<>();
+            List<CompletableFuture<ByteBuffer>> inFlight = new ArrayList<>();
+            Reply errorReply = null;
+            boolean timedOut = true;
 
-        while (numAttempts > 0) {
-        	
             try {
 
-                DatagramPacket queryDatagramPacket = new DatagramPacket(
-                        queryPacket, queryPacket.length, server, DEFAULT_DNS_PORT);
+                inFlight.add(send(candidates.get(0), node, flags, replies, retryBudget));
 
-                DatagramPacket responseDatagramPacket = new DatagramPacket(
-                        message, message.length, server, DEFAULT_DNS_PORT);
+                int completed = 0;
+                while (completed < inFlight.size()) {
 
-                socket.send(queryDatagramPacket);
+                    // once every candidate has been tried, wait for the stragglers to answer or time out
+                    boolean canHedge = inFlight.size() < candidates.size();
+                    InetAddress lastSent = candidates.get(inFlight.size() - 1);
+                    Reply reply = replies.poll(
+                            canHedge ? getHedgeDelayMillis(lastSent) : ServerStats.MAX_RTO_MILLIS, TimeUnit.MILLISECONDS);
 
-                if (tracing)
-                    System.out.printf("\n\nQuery ID    %d %s %s --> %s\n",
-                            id,
-                            serverName,
-                            node.getType(),
-                            server.getHostAddress());
+                    if (reply == null) {
+                        if (canHedge)
+                            inFlight.add(send(candidates.get(inFlight.size()), node, flags, replies, retryBudget));
+                        continue;
+                    }
 
-                socket.receive(responseDatagramPacket);
+                    completed++;
 
-                System.arraycopy(responseDatagramPacket.getData(), 0, message, 0, responseDatagramPacket.getLength());
+                    if (reply.isUsable())
+                        return decodeAndCacheResponse(reply, node, zone);
 
-                ByteBuffer response = ByteBuffer.wrap(message, 0, message.length);
+                    if (reply.response != null)
+                        errorReply = reply;
+                    if (!reply.timedOut)
+                        timedOut = false;
 
-                return decodeAndCacheResponse(id, response);
+                    // a server that failed outright is replaced immediately rather than after the delay
+                    if (inFlight.size() < candidates.size())
+                        inFlight.add(send(candidates.get(inFlight.size()), node, flags, replies, retryBudget));
+                }
 
-            } catch (SocketTimeoutException e) {
-                numAttempts--;
-            } catch (IOException | IllegalBlockingModeException e) {
-                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                inFlight.forEach(query -> query.cancel(false));
             }
 
+            // every server answered with an error or failed; report the error as before
+            if (errorReply != null)
+                return decodeAndCacheResponse(errorReply, node, zone);
+
+            if (!timedOut || !retryBudget.tryAcquire())
+                break;
         }
 
         // if something went wrong, return null.
         return null;
     }
 
+    // sends a single query, posting its outcome to replies when it completes;
+    // if the same question is already outstanding to the same server, attaches to it instead
+    // the query is counted against the resolution's retryBudget, even if it attaches
+    private static CompletableFuture<ByteBuffer> send(InetAddress server, SearchNode node, int flags,
+            BlockingQueue<Reply> replies, RetryBudget retryBudget) {
+
+        retryBudget.recordQuery();
+        Tracer.Span span = Tracer.startQuery(server, node);
+
+        InFlightKey key = new InFlightKey(node, server, flags);
+        CompletableFuture<ByteBuffer> query;
+        SharedQuery shared;
+        boolean coalesced = false;
+
+        while (true) {
+
+            shared = inFlightQueries.get(key);
+            if (shared == null) {
+                SharedQuery created = new SharedQuery();
+                shared = inFlightQueries.putIfAbsent(key, created);
+                if (shared == null) {
+                    shared = created;
+                    query = created.attach();
+                    start(key, created);
+                    break;
+                }
+            }
+
+            query = shared.attach();
+            if (query != null) {
+                coalescedQueries.increment();
+                coalesced = true;
+                break;
+            }
+
+            // every caller of that query gave up on it, so it is replaced
+            inFlightQueries.remove(key, shared);
+        }
+
+        SharedQuery sent = shared;
+        String transport = coalesced ? "coalesced" : null;
+        query.whenComplete((response, e) -> {
+            if (!(e instanceof CancellationException))
+                replies.add(new Reply(server, response, sent.rCode, e instanceof SocketTimeoutException));
+            if (span != null)
+                Tracer.end(span, describeOutcome(response, sent.rCode, e),
+                        transport != null ? transport : sent.overTcp ? "tcp" : "udp");
+        });
+
+        return query;
+    }
+
+    private static void start(InFlightKey key, SharedQuery shared) {
+
+        long sentAt = System.nanoTime();
+        InetSocketAddress server = new InetSocketAddress(key.server, serverPort);
+
+        shared.result.whenComplete((response, e) -> inFlightQueries.remove(key, shared));
+        udpQueries.increment();
+
+        // each query gets a fresh transaction ID, so a late reply to an earlier attempt is dropped
+        CompletableFuture<ByteBuffer> query = engine.query(
+                server, key.node, key.flags, serverStats.getRetransmitTimeoutMillis(key.server));
+        shared.query = query;
+
+        // the rcode is parsed once here, for the statistics and for every caller
+        query.whenComplete((response, e) -> {
+            int rCode = response == null ? 0 : PacketHandler.getRCodeFromPacket(response);
+            recordOutcome(key.server, response, rCode, e, System.nanoTime() - sentAt);
+            if (response != null && PacketHandler.isTruncated(response)) {
+                retryOverTcp(server, key, shared);
+            } else if (response != null) {
+                shared.rCode = rCode;
+                shared.result.complete(response);
+            } else {
+                shared.result.completeExceptionally(e);
+            }
+        });
+    }
+
+    // a truncated reply is asked again over TCP (RFC 7766), and the TCP reply is shared instead
+    private static void retryOverTcp(InetSocketAddress server, InFlightKey key, SharedQuery shared) {
+
+        CompletableFuture<ByteBuffer> query = tcpPool.query(server, key.node, key.flags, TCP_QUERY_TIMEOUT_MILLIS);
+        tcpQueries.increment();
+        shared.query = query;
+        shared.overTcp = true;
+
+        // every caller may have given up while the UDP reply was on its way
+        synchronized (shared) {
+            if (shared.abandoned)
+                query.cancel(false);
+        }
+
+        query.whenComplete((response, e) -> {
+            if (response != null) {
+                shared.rCode = PacketHandler.getRCodeFromPacket(response);
+                shared.result.complete(response);
+            } else {
+                shared.result.completeExceptionally(e);
+            }
+        });
+    }
+
+    // upstream queries that attached to an identical query already in flight
+    public static long getCoalescedQueries() {
+        return coalescedQueries.sum();
+    }
+
+    // queries sent over UDP, including retransmissions
+    public static long getUdpQueries() {
+        return udpQueries.sum();
+    }
+
+    // truncated replies asked again over TCP
+    public static long getTcpQueries() {
+        return tcpQueries.sum();
+    }
+
+    // the rcode of a reply, or how the query failed, for traces
+    private static String describeOutcome(ByteBuffer response, int rCode, Throwable e) {
+
+        if (response != null) {
+            return rCode < RCODE_NAMES.length ? RCODE_NAMES[rCode] : "RCODE" + rCode;
+        }
+
+        if (e instanceof SocketTimeoutException)
+            return "timeout";
+        if (e instanceof CancellationException)
+            return "cancelled";
+        return "error";
+    }
+
+    // how long to wait on server before hedging to the next one
+    private static long getHedgeDelayMillis(InetAddress server) {
+
+        ServerStats.Entry entry = serverStats.getEntry(server);
+        if (!entry.isMeasured())
+            return INITIAL_HEDGE_DELAY_MILLIS;
+
+        long delay = (long) (entry.getSmoothedRTT() + 4 * entry.getRTTVariance());
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(delay, ServerStats.MAX_RTO_MILLIS));
+    }
+
+    private static void recordOutcome(InetAddress server, ByteBuffer response, int rCode, Throwable e,
+            long rttNanos) {
+
+        if (e instanceof SocketTimeoutException) {
+            serverStats.recordTimeout(server);
+            return;
+        }
+
+        // lost a hedge to a faster server
+        if (e instanceof CancellationException) {
+            serverStats.recordUnanswered(server, rttNanos);
+            return;
+        }
+
+        if (response == null)
+            return;
+
+        serverStats.recordResponse(server, rttNanos);
+
+        try {
+            // NXDOMAIN is an answer, not a server failure
+            if (rCode != 0x3)
+                PacketHandler.checkRCode(rCode);
+        } catch (ResponseException error) {
+            serverStats.recordError(server, error);
+        }
+    }
+
     private static Set<ResourceRecord> decodeAndCacheResponse(
-    		int transactionID, ByteBuffer responseBuffer) throws QueryHaltException {
+    		Reply reply, SearchNode node, String zone) throws QueryHaltException {
+
+        if (tracing)
+            System.out.printf("\n\nQuery ID    %d %s %s --> %s\n",
+                    PacketHandler.getIDFromPacket(reply.response),
+                    node.getHostName().trim(),
+                    node.getType(),
+                    reply.server.getHostAddress());
+
+        ByteBuffer responseBuffer = reply.response;
+
+        // an error rcode ends the query without the packet being decoded
+        if (!reply.isUsable())
+            throw new QueryHaltException();
 
         // decode the packet from the responseBuffer
         try {
             DecodedPacket decodedPacket = PacketHandler.decodePacket(responseBuffer);
 
-            // get records from decoded packet
-            ResourceRecord[] an = decodedPacket.getAnswers();
-            ResourceRecord[] ns = decodedPacket.getAuthorities();
-            ResourceRecord[] ar = decodedPacket.getAdditionals();
+            Set<ResourceRecord> nsSet = cacheRecords(decodedPacket, node, zone);
 
-            if (tracing) {
-                System.out.printf("Response ID: %d Authoritative = %b\n",
-                        decodedPacket.getResponseID(),
-                        decodedPacket.isAuthoritative());
+            // an answer without records of the requested type, with the zone's SOA, is NODATA
+            if (isNoData(decodedPacket, node, nsSet)) {
+                cacheNegativeResponse(decodedPacket, node, zone, false);
+                throw new NegativeAnswerException(Resolution.Status.NODATA);
+            }
 
-                System.out.printf("  Answers (%d)\n", decodedPacket.getANCount());
-                for (ResourceRecord record : an)
-                	printResourceRecord(record, record.getType().getCode());
+            // return set of nameservers
+            return nsSet;
 
-                System.out.printf("  Nameservers (%d)\n", decodedPacket.getNSCount());
-                for (ResourceRecord n : ns)
-                	printResourceRecord(n, n.getType().getCode());
+        } catch (AuthoritativeNameErrorException e) {
 
-                System.out.printf("  Additional Information (%d)\n", decodedPacket.getARCount());
-                for (ResourceRecord resourceRecord : ar)
-                	printResourceRecord(resourceRecord, resourceRecord.getType().getCode());
+            DecodedPacket decodedPacket = e.getPacket();
+            if (decodedPacket != null) {
+                cacheRecords(decodedPacket, node, zone);
+                cacheNegativeResponse(decodedPacket, node, zone, true);
             }
 
-            // place records in an ordered hash set
-            Set<ResourceRecord> anSet = new LinkedHashSet<>(Arrays.asList(an));
-            Set<ResourceRecord> nsSet = new LinkedHashSet<>(Arrays.asList(ns));
-            Set<ResourceRecord> arSet = new LinkedHashSet<>(Arrays.asList(ar));
+            throw new NegativeAnswerException(Resolution.Status.NXDOMAIN);
 
-            // add answer and additional records to cache
-            anSet.forEach(cache::addResourceRecord);
-            arSet.forEach(cache::addResourceRecord);
+        } catch (NegativeAnswerException e) {
+            throw e;
+        } catch (ResponseException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            // error rcodes and malformed packets both end the query
+            throw new QueryHaltException();
+        }
+    }
 
-            // return set of nameservers
-            return nsSet;
+    // caches the answers, trusted referrals and glue of a response, and returns its authority records
+    private static Set<ResourceRecord> cacheRecords(DecodedPacket decodedPacket, SearchNode node, String zone) {
 
-        } catch (ResponseException e) {
-            throw new QueryHaltException();
+        // get records from decoded packet
+        ResourceRecord[] an = decodedPacket.getAnswers();
+        ResourceRecord[] ns = decodedPacket.getAuthorities();
+        ResourceRecord[] ar = decodedPacket.getAdditionals();
+
+        if (tracing) {
+            System.out.printf("Response ID: %d Authoritative = %b\n",
+                    decodedPacket.getResponseID(),
+                    decodedPacket.isAuthoritative());
+
+            if (decodedPacket.hasEDNS())
+                System.out.printf("  EDNS version %d, UDP payload size %d\n",
+                        decodedPacket.getEDNSVersion(),
+                        decodedPacket.getUDPPayloadSize());
+
+            System.out.printf("  Answers (%d)\n", decodedPacket.getANCount());
+            for (ResourceRecord record : an)
+            	printResourceRecord(record, record.getType().getCode());
+
+            System.out.printf("  Nameservers (%d)\n", decodedPacket.getNSCount());
+            for (ResourceRecord n : ns)
+            	printResourceRecord(n, n.getType().getCode());
+
+            System.out.printf("  Additional Information (%d)\n", decodedPacket.getARCount());
+            for (ResourceRecord resourceRecord : ar)
+            	printResourceRecord(resourceRecord, resourceRecord.getType().getCode());
+        }
+
+        // place records in an ordered hash set
+        Set<ResourceRecord> anSet = new LinkedHashSet<>(Arrays.asList(an));
+        Set<ResourceRecord> nsSet = new LinkedHashSet<>();
+        Set<ResourceRecord> arSet = new LinkedHashSet<>();
+
+        // a referral must be for the queried name or one of its ancestors, and inside the
+        // zone of the server that sent it; anything else is neither cached nor followed
+        for (ResourceRecord record : ns) {
+            if (record.getType() != RecordType.NS)
+                nsSet.add(record);
+            else if (SearchNode.isSubdomain(node.getHostName(), record.getHostName()) &&
+                    SearchNode.isSubdomain(record.getHostName(), zone))
+                nsSet.add(record);
+        }
+
+        // glue is only trusted for names the server is authoritative for
+        for (ResourceRecord record : ar)
+            if (SearchNode.isSubdomain(record.getHostName(), zone))
+                arSet.add(record);
+
+        // add answer, referral and glue records to cache
+        anSet.forEach(cache::addResourceRecord);
+        nsSet.stream().filter(record -> record.getType() == RecordType.NS).forEach(cache::addResourceRecord);
+        arSet.forEach(cache::addResourceRecord);
+
+        return nsSet;
+    }
+
+    // follows the CNAME chain for node through the answer section and returns the name it ends at
+    private static String getCanonicalName(DecodedPacket decodedPacket, SearchNode node) {
+
+        String name = node.getHostName();
+        ResourceRecord[] an = decodedPacket.getAnswers();
+
+        // a chain cannot be longer than the answer section
+        for (int i = 0; i < an.length && node.getType() != RecordType.CNAME; i++) {
+            boolean followed = false;
+            for (ResourceRecord record : an) {
+                if (record.getType() == RecordType.CNAME && record.getHostName().equalsIgnoreCase(name)) {
+                    name = record.getTextResult();
+                    followed = true;
+                    break;
+                }
+            }
+            if (!followed)
+                break;
+        }
+
+        return name;
+    }
+
+    // a response without an answer or a referral is NODATA (RFC 2308 section 2.2), unless it
+    // only followed a CNAME out of the server's zone, in which case there is no SOA for the
+    // name it ended at and the search carries on from there
+    private static boolean isNoData(DecodedPacket decodedPacket, SearchNode node, Set<ResourceRecord> nsSet) {
+
+        if (hasAnswer(decodedPacket, node) || nsSet.stream().anyMatch(record -> record.getType() == RecordType.NS))
+            return false;
+
+        String target = getCanonicalName(decodedPacket, node);
+        if (target.equalsIgnoreCase(node.getHostName()))
+            return true;
+
+        return nsSet.stream().anyMatch(record -> record.getType() == RecordType.SOA &&
+                SearchNode.isSubdomain(target, record.getHostName()));
+    }
+
+    private static boolean hasAnswer(DecodedPacket decodedPacket, SearchNode node) {
+
+        String name = getCanonicalName(decodedPacket, node);
+        for (ResourceRecord record : decodedPacket.getAnswers())
+            if (record.getType() == node.getType() && record.getHostName().equalsIgnoreCase(name))
+                return true;
+
+        return false;
+    }
+
+    // caches an NXDOMAIN or NODATA answer for the end of the CNAME chain starting at node,
+    // for the lesser of the SOA's TTL and MINIMUM field (RFC 2308 section 5); without an SOA
+    // from inside the server's zone the answer is not cached at all
+    static void cacheNegativeResponse(DecodedPacket decodedPacket, SearchNode node, String zone,
+            boolean nameError) {
+
+        SearchNode target = new SearchNode(getCanonicalName(decodedPacket, node), node.getType());
+
+        for (ResourceRecord record : decodedPacket.getAuthorities()) {
+
+            if (record.getType() != RecordType.SOA ||
+                    !SearchNode.isSubdomain(target.getHostName(), record.getHostName()) ||
+                    !SearchNode.isSubdomain(record.getHostName(), zone))
+                continue;
+
+            long ttl = Math.min(record.getTTL(), PacketHandler.getSOAMinimum(record.getTextResult()));
+            if (nameError)
+                cache.addNameError(target, record, ttl);
+            else
+                cache.addNoData(target, record, ttl);
+            return;
         }
     }
 
@@ -3,7 +3,7 @@ package com.xforgie.simplednsclient;
 public enum RecordType {
 	
     A(1), NS(2), CNAME(5), SOA(6), 
-    MX(15), AAAA(28), OTHER(0);
+    MX(15), AAAA(28), OPT(41), OTHER(0);
 
     private int code;
 
@@ -0,0 +1,64 @@
+package com.xforgie.simplednsclient;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ *
+ * The outcome of resolving a SearchNode: either its records, or the reason there are none
+ *
+ */
+
+public class Resolution {
+
+    public enum Status {
+        NOERROR,
+        // the name does not exist
+        NXDOMAIN,
+        // the name exists but has no records of the requested type
+        NODATA,
+        // the name could not be resolved
+        SERVFAIL
+    }
+
+    private static final Resolution SERVFAIL = new Resolution(Status.SERVFAIL, Collections.emptySet());
+    private static final Resolution NXDOMAIN = new Resolution(Status.NXDOMAIN, Collections.emptySet());
+    private static final Resolution NODATA = new Resolution(Status.NODATA, Collections.emptySet());
+
+    private final Status status;
+    private final Set<ResourceRecord> records;
+
+    private Resolution(Status status, Set<ResourceRecord> records) {
+        this.status = status;
+        this.records = records;
+    }
+
+    public static Resolution of(Set<ResourceRecord> records) {
+        return new Resolution(Status.NOERROR, records);
+    }
+
+    public static Resolution of(Status status) {
+        switch (status) {
+            case NXDOMAIN:
+                return NXDOMAIN;
+            case NODATA:
+                return NODATA;
+            case SERVFAIL:
+                return SERVFAIL;
+            default:
+                throw new IllegalArgumentException("A NOERROR resolution needs its records");
+        }
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Set<ResourceRecord> getRecords() {
+        return records;
+    }
+
+    public boolean isEmpty() {
+        return records.isEmpty();
+    }
+}
@@ -0,0 +1,282 @@
+package com.xforgie.simplednsclient;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.xforgie.simplednsclient.responseerrors.ResponseException;
+
+/**
+ *
+ * Always-on resolver metrics: end to end lookup latency and upstream queries per lookup,
+ * here, along with the cache counters, the upstream counters of QueryHandler and the
+ * per-server RTTs, timeouts and error rcodes of ServerStats. Readable over JMX and as a
+ * plain-text dump.
+ *
+ */
+
+public class ResolverMetrics implements ResolverMetricsMBean {
+
+    public static final String OBJECT_NAME = "com.xforgie.simplednsclient:type=ResolverMetrics";
+
+    // keeps the server list short when the resolver has talked to thousands of servers
+    private static final int MAX_LISTED_SERVERS = 20;
+
+    private static ResolverMetrics metrics = new ResolverMetrics();
+
+    // microseconds
+    private final Histogram lookupLatency = new Histogram();
+    // queries per lookup
+    private final Histogram upstreamQueries = new Histogram();
+    private final LongAdder[] statuses = new LongAdder[Resolution.Status.values().length];
+
+    // lookups answered from the cache with records, or as nonexistent, and those that were not
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheNegativeHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    private boolean registered;
+
+    // the client whose lookups are being measured, for the counters it keeps itself
+    private volatile SimpleDNSClient client;
+
+    private ResolverMetrics() {
+        for (int i = 0; i < statuses.length; i++)
+            statuses[i] = new LongAdder();
+    }
+
+    public static ResolverMetrics getMetrics() {
+        return metrics;
+    }
+
+    // one lookup made by a caller, and the upstream queries it took
+    public void recordLookup(long latencyNanos, int queries, Resolution.Status status) {
+        lookupLatency.record(latencyNanos / 1000);
+        upstreamQueries.record(queries);
+        statuses[status.ordinal()].increment();
+    }
+
+    // whether a lookup was answered from the cache; cached is null if it was not
+    public void recordCacheLookup(Resolution cached) {
+        if (cached == null)
+            cacheMisses.increment();
+        else if (cached.getStatus() == Resolution.Status.NOERROR)
+            cacheHits.increment();
+        else
+            cacheNegativeHits.increment();
+    }
+
+    public void setClient(SimpleDNSClient client) {
+        this.client = client;
+    }
+
+    // makes the metrics readable over JMX; later calls do nothing
+    public synchronized void registerMBean() {
+
+        if (registered)
+            return;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+            registered = true;
+        } catch (JMException e) {
+            System.err.println("Metrics could not be registered with JMX: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public long getLookups() {
+        return lookupLatency.getCount();
+    }
+
+    @Override
+    public long getNoErrorLookups() {
+        return statuses[Resolution.Status.NOERROR.ordinal()].sum();
+    }
+
+    @Override
+    public long getNxDomainLookups() {
+        return statuses[Resolution.Status.NXDOMAIN.ordinal()].sum();
+    }
+
+    @Override
+    public long getNoDataLookups() {
+        return statuses[Resolution.Status.NODATA.ordinal()].sum();
+    }
+
+    @Override
+    public long getServFailLookups() {
+        return statuses[Resolution.Status.SERVFAIL.ordinal()].sum();
+    }
+
+    @Override
+    public long getCoalescedLookups() {
+        SimpleDNSClient current = client;
+        return current == null ? 0 : current.getCoalescedLookups();
+    }
+
+    @Override
+    public long getPrefetches() {
+        SimpleDNSClient current = client;
+        return current == null ? 0 : current.getPrefetches();
+    }
+
+    @Override
+    public double getLookupLatencyMeanMillis() {
+        return lookupLatency.getMean() / 1000;
+    }
+
+    @Override
+    public double getLookupLatencyP50Millis() {
+        return lookupLatency.getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getLookupLatencyP90Millis() {
+        return lookupLatency.getPercentile(90) / 1000.0;
+    }
+
+    @Override
+    public double getLookupLatencyP99Millis() {
+        return lookupLatency.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getLookupLatencyP999Millis() {
+        return lookupLatency.getPercentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getLookupLatencyMaxMillis() {
+        return lookupLatency.getMax() / 1000.0;
+    }
+
+    @Override
+    public double getUpstreamRTTP50Millis() {
+        return ServerStats.getServerStats().getRTTHistogram().getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getUpstreamRTTP99Millis() {
+        return ServerStats.getServerStats().getRTTHistogram().getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getUpstreamQueriesPerLookup() {
+        return upstreamQueries.getMean();
+    }
+
+    @Override
+    public long getUdpQueries() {
+        return QueryHandler.getUdpQueries();
+    }
+
+    @Override
+    public long getTcpQueries() {
+        return QueryHandler.getTcpQueries();
+    }
+
+    @Override
+    public long getCoalescedQueries() {
+        return QueryHandler.getCoalescedQueries();
+    }
+
+    @Override
+    public long getUpstreamTimeouts() {
+        return ServerStats.getServerStats().getTimeouts();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    // negative hits count as hits
+    @Override
+    public double getCacheHitRatio() {
+        long hits = getCacheHits() + getCacheNegativeHits();
+        long lookups = hits + getCacheMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getCacheNegativeHits() {
+        return cacheNegativeHits.sum();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return Cache.getCache().getEvictions();
+    }
+
+    // the busiest MAX_LISTED_SERVERS servers, busiest first
+    @Override
+    public String[] getServers() {
+
+        List<ServerStats.Entry> entries = new ArrayList<>(ServerStats.getServerStats().getEntries());
+        entries.sort(Comparator.comparingLong(
+                (ServerStats.Entry entry) -> entry.getResponses() + entry.getTimeouts()).reversed());
+
+        String[] servers = new String[Math.min(entries.size(), MAX_LISTED_SERVERS)];
+        for (int i = 0; i < servers.length; i++)
+            servers[i] = entries.get(i).toString();
+        return servers;
+    }
+
+    @Override
+    public String[] getUpstreamErrors() {
+
+        Map<String, Long> totals = new TreeMap<>();
+        for (Map.Entry<Class<? extends ResponseException>, Long> error :
+                ServerStats.getServerStats().getErrors().entrySet())
+            totals.put(error.getKey().getSimpleName(), error.getValue());
+
+        List<String> errors = new ArrayList<>();
+        totals.forEach((error, count) -> errors.add(error + "=" + count));
+        return errors.toArray(new String[0]);
+    }
+
+    @Override
+    public String dump() {
+
+        StringBuilder out = new StringBuilder();
+
+        out.append(String.format("Lookups           %d (NOERROR %d, NXDOMAIN %d, NODATA %d, SERVFAIL %d), %d coalesced\n",
+                getLookups(), getNoErrorLookups(), getNxDomainLookups(), getNoDataLookups(), getServFailLookups(),
+                getCoalescedLookups()));
+        out.append(String.format("Lookup latency    mean %.3fms p50 %.3fms p90 %.3fms p99 %.3fms p99.9 %.3fms max %.3fms\n",
+                getLookupLatencyMeanMillis(), getLookupLatencyP50Millis(), getLookupLatencyP90Millis(),
+                getLookupLatencyP99Millis(), getLookupLatencyP999Millis(), getLookupLatencyMaxMillis()));
+        out.append(String.format("Upstream queries  %.2f per lookup (p99 %d); %d UDP, %d TCP, %d coalesced, %d timeouts\n",
+                getUpstreamQueriesPerLookup(), upstreamQueries.getPercentile(99),
+                getUdpQueries(), getTcpQueries(), getCoalescedQueries(), getUpstreamTimeouts()));
+        out.append(String.format("Upstream RTT      p50 %.3fms p99 %.3fms over all servers\n",
+                getUpstreamRTTP50Millis(), getUpstreamRTTP99Millis()));
+        String[] errors = getUpstreamErrors();
+        out.append(String.format("Upstream errors   %s\n", errors.length == 0 ? "none" : String.join(" ", errors)));
+        out.append(String.format("Cache             %d hits, %d misses (%.1f%% hit), %d negative hits, %d evictions, %d prefetches\n",
+                getCacheHits(), getCacheMisses(), getCacheHitRatio() * 100, getCacheNegativeHits(), getCacheEvictions(),
+                getPrefetches()));
+
+        out.append(String.format("Servers           %d tracked, busiest first\n",
+                ServerStats.getServerStats().getEntries().size()));
+        for (String server : getServers())
+            out.append("    ").append(server).append('\n');
+
+        return out.toString();
+    }
+}
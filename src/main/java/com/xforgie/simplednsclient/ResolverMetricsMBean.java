@@ -0,0 +1,72 @@
+package com.xforgie.simplednsclient;
+
+/**
+ *
+ * The resolver metrics readable over JMX. Latencies are in milliseconds.
+ *
+ */
+
+public interface ResolverMetricsMBean {
+
+    long getLookups();
+
+    long getNoErrorLookups();
+
+    long getNxDomainLookups();
+
+    long getNoDataLookups();
+
+    long getServFailLookups();
+
+    // lookups that attached to an identical lookup already in flight
+    long getCoalescedLookups();
+
+    double getLookupLatencyMeanMillis();
+
+    double getLookupLatencyP50Millis();
+
+    double getLookupLatencyP90Millis();
+
+    double getLookupLatencyP99Millis();
+
+    double getLookupLatencyP999Millis();
+
+    double getLookupLatencyMaxMillis();
+
+    // round trip times of answered upstream queries, over all servers
+    double getUpstreamRTTP50Millis();
+
+    double getUpstreamRTTP99Millis();
+
+    double getUpstreamQueriesPerLookup();
+
+    long getUdpQueries();
+
+    long getTcpQueries();
+
+    long getCoalescedQueries();
+
+    long getUpstreamTimeouts();
+
+    // lookups answered from the cache, counted once each however many entries they read
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    long getCacheNegativeHits();
+
+    long getCacheEvictions();
+
+    // records refreshed in the background before they expired
+    long getPrefetches();
+
+    // one line per upstream server, for the busiest ones
+    String[] getServers();
+
+    // error rcodes from all servers, by the ResponseException they map to
+    String[] getUpstreamErrors();
+
+    String dump();
+}
@@ -0,0 +1,472 @@
+package com.xforgie.simplednsclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Answers DNS queries from other processes on a local UDP and TCP port, as a caching stub
+ * resolver.
+ *
+ * A single thread receives on the UDP socket and hands each datagram to a pool of handlers;
+ * threads blocked on one socket would only take turns on its read lock, and SO_REUSEPORT
+ * is not available before Java 9. TCP connections get a thread each. Queries the cache can
+ * answer are answered by the handler or connection thread; the rest are resolved
+ * iteratively by a pool of workers, so a slow resolution never holds up the others. Answers too
+ * large for UDP are truncated, and clients get them in full by asking again over TCP
+ * (RFC 7766).
+ *
+ */
+
+public class ResolverServer implements Runnable {
+
+    private static final int MAX_QUEUED_QUERIES = 4096;
+    private static final int MAX_MESSAGE_SIZE = 0xFFFF;
+
+    // the payload advertised to clients that use EDNS
+    private static final int UDP_PAYLOAD_SIZE = 1232;
+
+    private static final int MAX_INDIRECTIONS = 10;
+
+    // connections beyond this are closed as soon as they are accepted
+    private static final int MAX_TCP_CONNECTIONS = 64;
+    private static final int TCP_IDLE_TIMEOUT_MILLIS = 10000;
+
+    private final SimpleDNSClient client;
+    private final int port;
+    private final int workers;
+
+    private DatagramChannel channel;
+    private ServerSocket tcpListener;
+    private final AtomicInteger tcpConnections = new AtomicInteger();
+    private ThreadPoolExecutor handlers;
+    private ThreadPoolExecutor executor;
+
+    // decoding and encoding happen on handlers and workers at once
+    private final ThreadLocal<PacketReader> readers = ThreadLocal.withInitial(PacketReader::new);
+    private final ThreadLocal<ByteBuffer> responseBuffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_MESSAGE_SIZE));
+
+    // a query from a client, as far as it is needed to answer it
+    private static class Request {
+
+        private final SocketAddress client;
+        // the connection to answer on, or null for a query that came over UDP
+        private final DataOutputStream tcp;
+        private final int id;
+        private final boolean recursionDesired;
+        private final SearchNode question;
+        private final String questionName;
+        private final int questionType;
+
+        // 0 if the query had no OPT record
+        private final int udpPayloadSize;
+
+        // questionName is null if the query had no single question
+        private Request(SocketAddress client, DataOutputStream tcp, int id, boolean recursionDesired,
+                String questionName, int questionType, int udpPayloadSize) {
+            this.client = client;
+            this.tcp = tcp;
+            this.id = id;
+            this.recursionDesired = recursionDesired;
+            this.questionName = questionName;
+            this.questionType = questionType;
+            this.question = questionName == null ? null :
+                    new SearchNode(questionName, RecordType.getByCode(questionType));
+            this.udpPayloadSize = udpPayloadSize;
+        }
+
+        // the largest response the client accepts over UDP
+        private int getMaxResponseSize() {
+            return Math.max(Math.min(udpPayloadSize, UDP_PAYLOAD_SIZE), QueryEncoder.MIN_UDP_PAYLOAD_SIZE);
+        }
+    }
+
+    // listens on port of the loopback address; workers bounds the lookups resolved at once
+    public ResolverServer(SimpleDNSClient client, int port, int workers) {
+        this.client = client;
+        this.port = port;
+        this.workers = workers;
+    }
+
+    @Override
+    public void run() {
+
+        client.start();
+
+        handlers = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_QUERIES), r -> {
+                    Thread t = new Thread(r, "server-handler");
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_QUERIES), r -> {
+                    Thread t = new Thread(r, "server-worker");
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(address);
+            tcpListener = new ServerSocket();
+            tcpListener.bind(address);
+        } catch (IOException e) {
+            System.err.println("Server could not be started: " + e.getMessage());
+            System.exit(1);
+        }
+
+        System.err.printf("Listening on %s\n", address);
+
+        Thread acceptor = new Thread(this::acceptLoop, "server-tcp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        receiveLoop();
+    }
+
+    // only receives and copies each datagram out, so a single thread keeps up
+    private void receiveLoop() {
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE);
+
+        while (true) {
+            try {
+                buf.clear();
+                SocketAddress source = channel.receive(buf);
+                buf.flip();
+
+                byte[] datagram = new byte[buf.remaining()];
+                buf.get(datagram);
+                handlers.execute(() -> handleDatagram(source, datagram));
+
+            } catch (RejectedExecutionException e) {
+                // overloaded; the datagram is dropped and the client asks again
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Server receive failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleDatagram(SocketAddress source, byte[] datagram) {
+        try {
+            handle(source, ByteBuffer.wrap(datagram), readers.get(), null);
+        } catch (RuntimeException e) {
+            // handle answers what it can; one bad datagram never stops the handler
+            System.err.println("Server could not answer a query: " + e);
+        } catch (IOException e) {
+            System.err.println("Server send failed: " + e.getMessage());
+        }
+    }
+
+    private void acceptLoop() {
+
+        while (true) {
+
+            Socket socket;
+            try {
+                socket = tcpListener.accept();
+            } catch (IOException e) {
+                if (tcpListener.isClosed())
+                    return;
+                System.err.println("Server accept failed: " + e.getMessage());
+                continue;
+            }
+
+            if (tcpConnections.incrementAndGet() > MAX_TCP_CONNECTIONS) {
+                tcpConnections.decrementAndGet();
+                closeQuietly(socket);
+                continue;
+            }
+
+            Thread connection = new Thread(() -> serveConnection(socket), "server-tcp-connection");
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    // reads the queries on one connection in order; their answers are written back as they
+    // are ready, in any order (RFC 7766 section 6.2.1.1)
+    private void serveConnection(Socket socket) {
+
+        PacketReader reader = new PacketReader();
+
+        try {
+            socket.setSoTimeout(TCP_IDLE_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            while (true) {
+                byte[] message = new byte[in.readUnsignedShort()];
+                in.readFully(message);
+
+                try {
+                    handle(socket.getRemoteSocketAddress(), ByteBuffer.wrap(message), reader, out);
+                } catch (RuntimeException e) {
+                    System.err.println("Server could not answer a query: " + e);
+                }
+            }
+        } catch (EOFException | SocketTimeoutException e) {
+            // closed by the client, or idle
+        } catch (IOException e) {
+            // the connection broke; its pending answers are dropped
+        } finally {
+            closeQuietly(socket);
+            tcpConnections.decrementAndGet();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing useful to do while closing
+        }
+    }
+
+    // tcp is the connection the query came in on, or null for UDP
+    private void handle(SocketAddress source, ByteBuffer query, PacketReader reader, DataOutputStream tcp)
+            throws IOException {
+
+        Request request;
+        int rCode;
+
+        try {
+            reader.reset(query);
+
+            // responses, including reflected ones, are never answered
+            if (reader.isResponse())
+                return;
+
+            request = parseRequest(source, tcp, reader);
+            rCode = getRequestError(reader);
+
+        } catch (RuntimeException e) {
+            // truncated names, pointer loops and bad labels alike
+            if (query.limit() < PacketReader.HEADER_SIZE)
+                return;
+            request = new Request(source, tcp, query.getShort(0) & 0xFFFF, false, null, 0, 0);
+            rCode = ResponseEncoder.RCODE_FORMERR;
+        }
+
+        if (rCode != ResponseEncoder.RCODE_NOERROR) {
+            sendError(request, rCode);
+            return;
+        }
+
+        // the cache answers without blocking; everything else goes to the workers
+        try {
+            Resolution cached = client.resolveFromCache(
+                    request.question.getHostName(), request.question.getType());
+            if (cached != null) {
+                respond(request, cached);
+                return;
+            }
+        } catch (RuntimeException e) {
+            // a record that cannot be encoded, or a bug; the client still gets an answer
+            sendError(request, ResponseEncoder.RCODE_SERVFAIL);
+            return;
+        }
+
+        resolveLater(request);
+    }
+
+    private void resolveLater(Request request) throws IOException {
+
+        try {
+            executor.execute(() -> {
+                try {
+                    respond(request, client.resolve(request.question.getHostName(), request.question.getType()));
+                } catch (RuntimeException e) {
+                    try {
+                        sendError(request, ResponseEncoder.RCODE_SERVFAIL);
+                    } catch (IOException sendFailure) {
+                        System.err.println("Server send failed: " + sendFailure.getMessage());
+                    }
+                } catch (IOException e) {
+                    System.err.println("Server send failed: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // overloaded
+            sendError(request, ResponseEncoder.RCODE_SERVFAIL);
+        }
+    }
+
+    private static Request parseRequest(SocketAddress source, DataOutputStream tcp, PacketReader reader) {
+
+        String questionName = null;
+        int questionType = 0;
+        if (reader.getQdCount() == 1) {
+            questionName = reader.getQuestionName();
+            questionType = reader.getQuestionType();
+        }
+
+        // the client's payload size, from its OPT record
+        int udpPayloadSize = 0;
+        while (reader.nextRecord())
+            if (reader.getSection() == PacketReader.Section.ADDITIONAL &&
+                    reader.getType() == RecordType.OPT.getCode())
+                udpPayloadSize = Math.max(reader.getRecordClass(), QueryEncoder.MIN_UDP_PAYLOAD_SIZE);
+
+        return new Request(source, tcp, reader.getID(), (reader.getFlags() & 0x0100) != 0,
+                questionName, questionType, udpPayloadSize);
+    }
+
+    // the rcode for queries this server cannot answer, or NOERROR
+    private static int getRequestError(PacketReader reader) {
+
+        if (reader.getOpCode() != 0)
+            return ResponseEncoder.RCODE_NOTIMP;
+
+        if (reader.getQdCount() != 1)
+            return ResponseEncoder.RCODE_FORMERR;
+
+        RecordType type = RecordType.getByCode(reader.getQuestionType());
+        if (reader.getQuestionClass() != 1 || type == RecordType.OTHER || type == RecordType.OPT)
+            return ResponseEncoder.RCODE_NOTIMP;
+
+        return ResponseEncoder.RCODE_NOERROR;
+    }
+
+    private void respond(Request request, Resolution resolution) throws IOException {
+
+        Set<ResourceRecord> answers;
+        switch (resolution.getStatus()) {
+            case NXDOMAIN:
+                answers = getAnswers(request.question, resolution);
+                send(request, ResponseEncoder.RCODE_NXDOMAIN, answers, getNegativeAuthority(request.question, answers));
+                break;
+            case NODATA:
+                answers = getAnswers(request.question, resolution);
+                send(request, ResponseEncoder.RCODE_NOERROR, answers, getNegativeAuthority(request.question, answers));
+                break;
+            case SERVFAIL:
+                send(request, ResponseEncoder.RCODE_SERVFAIL, Collections.emptySet());
+                break;
+            default:
+                send(request, ResponseEncoder.RCODE_NOERROR, getAnswers(request.question, resolution));
+                break;
+        }
+    }
+
+    // the cached SOA that the name at the end of the CNAME chain in answers was found not to
+    // exist with, so the client can cache the negative answer too (RFC 2308 section 3)
+    private static Set<ResourceRecord> getNegativeAuthority(SearchNode question, Set<ResourceRecord> answers) {
+
+        String name = question.getHostName();
+        for (ResourceRecord answer : answers)
+            if (answer.getType() == RecordType.CNAME)
+                name = answer.getTextResult();
+
+        ResourceRecord soa = Cache.getCache().getNegativeAuthority(new SearchNode(name, question.getType()));
+        return soa == null ? Collections.emptySet() : Collections.singleton(soa);
+    }
+
+    // the cached CNAME chain from the question's name, followed by the records it ends at;
+    // links that have expired are still in the chain a stale answer was found through, and
+    // go out with the same short TTL as the stale records
+    private Set<ResourceRecord> getAnswers(SearchNode question, Resolution resolution) {
+
+        Set<ResourceRecord> answers = new LinkedHashSet<>();
+        Cache cache = Cache.getCache();
+
+        String name = question.getHostName();
+        for (int i = 0; i < MAX_INDIRECTIONS && question.getType() != RecordType.CNAME; i++) {
+            SearchNode node = new SearchNode(name, RecordType.CNAME);
+            Set<ResourceRecord> cnames = cache.getResourceRecords(node);
+            boolean stale = cnames.isEmpty();
+            if (stale)
+                cnames = cache.getStaleRecords(node);
+            if (cnames.isEmpty())
+                break;
+
+            ResourceRecord cname = cnames.iterator().next();
+            answers.add(stale ? cname.withTTL(SimpleDNSClient.STALE_ANSWER_TTL) : cname);
+            name = cname.getTextResult();
+        }
+
+        answers.addAll(resolution.getRecords());
+        return answers;
+    }
+
+    // sends a response without records; one whose question cannot be encoded, such as a name
+    // with a dot inside a label, goes without its question
+    private void sendError(Request request, int rCode) throws IOException {
+        try {
+            send(request, rCode, Collections.emptySet());
+        } catch (RuntimeException e) {
+            send(new Request(request.client, request.tcp, request.id, request.recursionDesired, null, 0,
+                    request.udpPayloadSize), rCode, Collections.emptySet());
+        }
+    }
+
+    private void send(Request request, int rCode, Set<ResourceRecord> answers) throws IOException {
+        send(request, rCode, answers, Collections.emptySet());
+    }
+
+    // encodes and sends a response; over UDP it is truncated if it is larger than the client
+    // accepts, and the client is expected to ask again over TCP
+    private void send(Request request, int rCode, Set<ResourceRecord> answers, Set<ResourceRecord> authorities)
+            throws IOException {
+
+        ByteBuffer buf = responseBuffers.get();
+
+        buf.clear();
+        ResponseEncoder.writeResponse(buf, request.id, request.recursionDesired, request.questionName,
+                request.questionType, rCode, answers, authorities, false,
+                request.udpPayloadSize > 0 ? UDP_PAYLOAD_SIZE : 0);
+
+        if (request.tcp != null) {
+            // workers answer queries of the same connection at once
+            synchronized (request.tcp) {
+                try {
+                    request.tcp.writeShort(buf.position());
+                    request.tcp.write(buf.array(), 0, buf.position());
+                    request.tcp.flush();
+                } catch (IOException e) {
+                    // the client closed the connection without waiting for the answer
+                }
+            }
+            return;
+        }
+
+        if (buf.position() > request.getMaxResponseSize()) {
+            buf.clear();
+            ResponseEncoder.writeResponse(buf, request.id, request.recursionDesired, request.questionName,
+                    request.questionType, rCode, answers, authorities, true,
+                    request.udpPayloadSize > 0 ? UDP_PAYLOAD_SIZE : 0);
+        }
+
+        buf.flip();
+        channel.send(buf, request.client);
+    }
+}
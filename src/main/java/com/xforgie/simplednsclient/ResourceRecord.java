@@ -1,26 +1,35 @@
 package com.xforgie.simplednsclient;
 
 import java.net.InetAddress;
-import java.util.Date;
 import java.util.Objects;
 
 public class ResourceRecord {
 
-    private SearchNode node;
-    private Date expirationTime;
-    private String textResult;
-    private InetAddress inetResult;
+    private final SearchNode node;
+    private final long expirationTime;
+    private final long originalTTL;
+    private final String textResult;
+    private final InetAddress inetResult;
 
-    public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
+    private ResourceRecord(String hostName, RecordType type, long ttl, String textResult, InetAddress inetResult) {
         this.node = new SearchNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
+        this.expirationTime = CoarseClock.currentTimeMillis() + (ttl * 1000);
+        this.originalTTL = ttl;
+        this.textResult = textResult;
+        this.inetResult = inetResult;
+    }
+
+    public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
+        this(hostName, type, ttl, result, null);
     }
 
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
-        this.inetResult = result;
+        this(hostName, type, ttl, result.getHostAddress(), result);
+    }
+
+    // a copy of the record that expires ttl seconds from now
+    public ResourceRecord withTTL(long ttl) {
+        return new ResourceRecord(getHostName(), getType(), ttl, textResult, inetResult);
     }
 
     public SearchNode getNode() {
@@ -37,15 +46,25 @@ public class ResourceRecord {
 
     // Returns TTL in seconds rounded up
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - CoarseClock.currentTimeMillis() + 999) / 1000;
+    }
+
+    // the TTL in seconds the record was received with
+    public long getOriginalTTL() {
+        return originalTTL;
+    }
+
+    // absolute expiration time in milliseconds since the epoch
+    public long getExpirationTime() {
+        return expirationTime;
     }
 
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime > CoarseClock.currentTimeMillis();
     }
 
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
     }
 
     public String getTextResult() {
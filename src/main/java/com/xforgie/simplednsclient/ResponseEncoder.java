@@ -0,0 +1,163 @@
+package com.xforgie.simplednsclient;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * Writes responses to clients in wire format. Owner names and the names inside NS, CNAME,
+ * MX and SOA data are compressed against every name written before them in the message
+ * (RFC 1035 section 4.1.4).
+ *
+ */
+
+public abstract class ResponseEncoder {
+
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_FORMERR = 1;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+    public static final int RCODE_NOTIMP = 4;
+
+    // pointers only have 14 bits for the offset
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+
+    // writes a response with the given answers and authority records into dst at its position,
+    // which is advanced past it; questionName may be null for requests whose question could not
+    // be read, and an OPT record advertising udpPayloadSize is added unless it is 0
+    public static void writeResponse(ByteBuffer dst, int id, boolean recursionDesired, String questionName,
+            int questionType, int rCode, Collection<ResourceRecord> answers, Collection<ResourceRecord> authorities,
+            boolean truncated, int udpPayloadSize) {
+
+        int start = dst.position();
+        Map<String, Integer> names = new HashMap<>();
+
+        dst.putShort((short) id);
+        // QR, RA, and RD copied from the query
+        int flags = 0x8080 | (recursionDesired ? 0x0100 : 0) | (truncated ? 0x0200 : 0) | (rCode & 0xF);
+        dst.putShort((short) flags);
+        // QDCOUNT, ANCOUNT, NSCOUNT, ARCOUNT
+        dst.putShort((short) (questionName == null ? 0 : 1));
+        int anCount = dst.position();
+        dst.putShort((short) 0);
+        int nsCount = dst.position();
+        dst.putShort((short) 0);
+        dst.putShort((short) (udpPayloadSize > 0 ? 1 : 0));
+
+        if (questionName != null) {
+            writeName(dst, start, questionName, names);
+            dst.putShort((short) questionType);
+            dst.putShort((short) 1);
+        }
+
+        if (!truncated) {
+            dst.putShort(anCount, (short) writeRecords(dst, start, answers, names));
+            dst.putShort(nsCount, (short) writeRecords(dst, start, authorities, names));
+        }
+
+        if (udpPayloadSize > 0) {
+            dst.put((byte) 0);
+            dst.putShort((short) RecordType.OPT.getCode());
+            dst.putShort((short) udpPayloadSize);
+            dst.putInt(0);
+            dst.putShort((short) 0);
+        }
+    }
+
+    // returns how many of records were written
+    private static int writeRecords(ByteBuffer dst, int start, Collection<ResourceRecord> records,
+            Map<String, Integer> names) {
+
+        int written = 0;
+        for (ResourceRecord record : records)
+            if (writeRecord(dst, start, record, names))
+                written++;
+        return written;
+    }
+
+    // returns false, having written nothing, for records whose data cannot be encoded
+    private static boolean writeRecord(ByteBuffer dst, int start, ResourceRecord record, Map<String, Integer> names) {
+
+        RecordType type = record.getType();
+        if (type == RecordType.OTHER || type == RecordType.OPT)
+            return false;
+
+        writeName(dst, start, record.getHostName(), names);
+        dst.putShort((short) type.getCode());
+        dst.putShort((short) 1);
+        dst.putInt((int) Math.max(record.getTTL(), 0));
+
+        // RDLENGTH is filled in once the data is written
+        int rdLength = dst.position();
+        dst.putShort((short) 0);
+
+        switch (type) {
+            case A:
+            case AAAA:
+                dst.put(record.getInetResult().getAddress());
+                break;
+            case NS:
+            case CNAME:
+                writeName(dst, start, record.getTextResult(), names);
+                break;
+            case MX: {
+                // preference and exchange
+                String[] fields = record.getTextResult().split(" ");
+                dst.putShort((short) Integer.parseInt(fields[0]));
+                writeName(dst, start, fields[1], names);
+                break;
+            }
+            case SOA: {
+                // MNAME RNAME SERIAL REFRESH RETRY EXPIRE MINIMUM
+                String[] fields = record.getTextResult().split(" ");
+                writeName(dst, start, fields[0], names);
+                writeName(dst, start, fields[1], names);
+                for (int i = 2; i < 7; i++)
+                    dst.putInt((int) Long.parseLong(fields[i]));
+                break;
+            }
+            default:
+                break;
+        }
+
+        dst.putShort(rdLength, (short) (dst.position() - rdLength - 2));
+        return true;
+    }
+
+    // writes name, ending in a pointer to the longest suffix already in the message
+    private static void writeName(ByteBuffer dst, int start, String name, Map<String, Integer> names) {
+
+        name = name.trim();
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+
+        while (!name.isEmpty()) {
+
+            String key = name.toLowerCase();
+            Integer offset = names.get(key);
+            if (offset != null) {
+                dst.putShort((short) (0xC000 | offset));
+                return;
+            }
+
+            int position = dst.position() - start;
+            if (position <= MAX_POINTER_OFFSET)
+                names.put(key, position);
+
+            int dot = name.indexOf('.');
+            String label = dot < 0 ? name : name.substring(0, dot);
+            if (label.isEmpty() || label.length() > QueryEncoder.MAX_LABEL_LENGTH)
+                throw new IllegalArgumentException("Invalid label in domain name: " + name);
+
+            dst.put((byte) label.length());
+            dst.put(label.getBytes(StandardCharsets.ISO_8859_1));
+
+            name = dot < 0 ? "" : name.substring(dot + 1);
+        }
+
+        dst.put((byte) 0);
+    }
+}
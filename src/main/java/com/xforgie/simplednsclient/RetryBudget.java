@@ -0,0 +1,46 @@
+package com.xforgie.simplednsclient;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * The number of retransmission rounds one resolution may still spend, shared by every
+ * query it sends, including the lookups of nameserver addresses it needs along the way.
+ * It also counts those queries.
+ *
+ */
+
+public class RetryBudget {
+
+    private final AtomicInteger remaining;
+    private final AtomicInteger queries = new AtomicInteger();
+
+    public RetryBudget(int retries) {
+        this.remaining = new AtomicInteger(retries);
+    }
+
+    // takes one retry from the budget, returning false if it is spent
+    public boolean tryAcquire() {
+
+        while (true) {
+            int current = remaining.get();
+            if (current <= 0)
+                return false;
+            if (remaining.compareAndSet(current, current - 1))
+                return true;
+        }
+    }
+
+    public int getRemaining() {
+        return Math.max(remaining.get(), 0);
+    }
+
+    public void recordQuery() {
+        queries.incrementAndGet();
+    }
+
+    // upstream queries sent for the resolution so far
+    public int getQueries() {
+        return queries.get();
+    }
+}
@@ -2,12 +2,39 @@ package com.xforgie.simplednsclient;
 
 public class SearchNode implements Comparable<SearchNode> {
 
-	private String hostName;
-    private RecordType type;
+	private final String hostName;
+    private final RecordType type;
+    // of the lower case name, since names compare without case (RFC 4343)
+    private final int hash;
 
     public SearchNode(String hostName, RecordType type) {
         this.hostName = hostName;
         this.type = type;
+        this.hash = 31 * hashIgnoreCase(hostName) + type.hashCode();
+    }
+
+    // only ASCII letters have case in DNS names
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static int hashIgnoreCase(String name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++)
+            h = 31 * h + toLowerCase(name.charAt(i));
+        return h;
+    }
+
+    private static boolean equalsIgnoreCase(String a, String b) {
+
+        if (a.length() != b.length())
+            return false;
+
+        for (int i = 0; i < a.length(); i++)
+            if (toLowerCase(a.charAt(i)) != toLowerCase(b.charAt(i)))
+                return false;
+
+        return true;
     }
 
     public String getHostName() {
@@ -18,6 +45,24 @@ public class SearchNode implements Comparable<SearchNode> {
         return type;
     }
 
+    // true if name is zone or a name below it; "" is the root zone
+    // comparison ignores case and trailing dots
+    public static boolean isSubdomain(String name, String zone) {
+
+        name = stripTrailingDot(name.trim());
+        zone = stripTrailingDot(zone.trim());
+
+        if (zone.isEmpty() || name.equalsIgnoreCase(zone))
+            return true;
+
+        int start = name.length() - zone.length();
+        return start > 0 && name.charAt(start - 1) == '.' && name.regionMatches(true, start, zone, 0, zone.length());
+    }
+
+    private static String stripTrailingDot(String name) {
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
     @Override
     public boolean equals(Object o) {
     	
@@ -29,12 +74,12 @@ public class SearchNode implements Comparable<SearchNode> {
 
         SearchNode dnsNode = (SearchNode) o;
 
-        return hostName.equals(dnsNode.hostName) && type == dnsNode.type;
+        return type == dnsNode.type && hash == dnsNode.hash && equalsIgnoreCase(hostName, dnsNode.hostName);
     }
 
     @Override
     public int hashCode() {
-        return 31 * hostName.hashCode() + type.hashCode();
+        return hash;
     }
 
     @Override
@@ -0,0 +1,392 @@
+package com.xforgie.simplednsclient;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.xforgie.simplednsclient.responseerrors.ResponseException;
+
+/**
+ *
+ * Tracks the smoothed round trip time, variance, timeouts and error rcodes of every
+ * upstream server, and orders nameservers BIND-style: every server has a selection score
+ * that follows its round trip times, is raised by timeouts and errors, and decays while
+ * the server is passed over so it is re-probed every so often; the lowest score is
+ * preferred. Retransmission timeouts come from the round trip estimates alone, in the
+ * style of TCP's RTO, and back off exponentially while a server keeps timing out.
+ * At most MAX_SERVERS are tracked; past that, the least recently used are forgotten.
+ * Round trip times go into one histogram for all servers; only the servers passed to
+ * trackRTTHistograms, such as forwarders, get a histogram of their own.
+ *
+ */
+
+public class ServerStats {
+
+    // unknown servers start with a small random score so they get tried early
+    private static final double MAX_INITIAL_SCORE_MILLIS = 32;
+    private static final double MAX_SCORE_MILLIS = 10000;
+
+    // applied to every server that was not chosen
+    private static final double DECAY_FACTOR = 0.98;
+
+    private static final double TIMEOUT_PENALTY_FACTOR = 2;
+    private static final double MIN_TIMEOUT_PENALTY_MILLIS = 500;
+    private static final double ERROR_PENALTY_MILLIS = 200;
+
+    // keeps a server on the local host from taking all of the weight
+    private static final double MIN_WEIGHTED_SCORE_MILLIS = 1;
+
+    // retransmission timeouts, see RFC 6298 section 2
+    public static final long MIN_RTO_MILLIS = 50;
+    public static final long INITIAL_RTO_MILLIS = 1000;
+    public static final long MAX_RTO_MILLIS = 3000;
+    private static final int MAX_BACKOFF = 6;
+
+    // an iterative resolver meets a new server with nearly every zone, so the entries are
+    // bounded; pruning goes down to PRUNED_SERVERS, so it does not run on every new server
+    public static final int MAX_SERVERS = 4096;
+    private static final int PRUNED_SERVERS = MAX_SERVERS * 3 / 4;
+
+    private static ServerStats serverStats = new ServerStats();
+
+    public static class Entry {
+
+        private final InetAddress address;
+
+        // milliseconds, from answered queries only
+        private double smoothedRTT;
+        private double rttVariance;
+        private boolean measured;
+
+        // milliseconds; what servers are ordered by, moved by penalties and decay as well
+        // as by round trips
+        private double selectionScore;
+
+        // consecutive timeouts, each of which doubles the retransmission timeout
+        private int backoff;
+
+        // CoarseClock time of the last query to or answer from the server
+        private volatile long lastUsed = CoarseClock.currentTimeMillis();
+
+        // only for the few servers it was asked for; null for the rest
+        private volatile Histogram rtt;
+        private final LongAdder responses = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final Map<Class<? extends ResponseException>, LongAdder> errors = new ConcurrentHashMap<>();
+
+        private Entry(InetAddress address) {
+            this.address = address;
+            this.selectionScore = ThreadLocalRandom.current().nextDouble(1, MAX_INITIAL_SCORE_MILLIS);
+        }
+
+        // TCP-style estimator from RFC 6298
+        private synchronized void recordRoundTrip(double rtt) {
+
+            if (!measured) {
+                smoothedRTT = rtt;
+                rttVariance = rtt / 2;
+                selectionScore = rtt;
+                measured = true;
+            } else {
+                rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRTT - rtt);
+                smoothedRTT = 0.875 * smoothedRTT + 0.125 * rtt;
+                selectionScore = 0.875 * selectionScore + 0.125 * rtt;
+            }
+        }
+
+        private synchronized void penalize(double factor, double minimum) {
+            selectionScore = Math.min(MAX_SCORE_MILLIS, Math.max(selectionScore * factor, selectionScore + minimum));
+        }
+
+        private synchronized void raiseSelectionScore(double minimum) {
+            selectionScore = Math.min(MAX_SCORE_MILLIS, Math.max(selectionScore, minimum));
+        }
+
+        private synchronized void decay() {
+            selectionScore *= DECAY_FACTOR;
+        }
+
+        private synchronized void backOff() {
+            backoff = Math.min(backoff + 1, MAX_BACKOFF);
+        }
+
+        private synchronized void resetBackoff() {
+            backoff = 0;
+        }
+
+        // srtt + 4 * rttvar, doubled for every consecutive timeout and kept within bounds;
+        // servers that never answered start at INITIAL_RTO_MILLIS
+        public synchronized long getRetransmitTimeoutMillis() {
+
+            double base = measured ? smoothedRTT + 4 * rttVariance : INITIAL_RTO_MILLIS;
+            double rto = Math.max(base, MIN_RTO_MILLIS) * (1 << backoff);
+
+            return (long) Math.min(rto, MAX_RTO_MILLIS);
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        public synchronized double getSmoothedRTT() {
+            return smoothedRTT;
+        }
+
+        public synchronized double getRTTVariance() {
+            return rttVariance;
+        }
+
+        public synchronized double getSelectionScore() {
+            return selectionScore;
+        }
+
+        public synchronized boolean isMeasured() {
+            return measured;
+        }
+
+        public long getResponses() {
+            return responses.sum();
+        }
+
+        public long getTimeouts() {
+            return timeouts.sum();
+        }
+
+        // round trip times of answered queries, in microseconds, or null if the server
+        // does not have a histogram of its own
+        public Histogram getRTTHistogram() {
+            return rtt;
+        }
+
+        public Map<Class<? extends ResponseException>, Long> getErrors() {
+            Map<Class<? extends ResponseException>, Long> counts = new HashMap<>();
+            errors.forEach((error, count) -> counts.put(error, count.sum()));
+            return counts;
+        }
+
+        public long getErrors(Class<? extends ResponseException> error) {
+            LongAdder count = errors.get(error);
+            return count == null ? 0 : count.sum();
+        }
+
+        @Override
+        public String toString() {
+
+            StringBuilder errorCounts = new StringBuilder();
+            errors.forEach((error, count) -> errorCounts.append(' ')
+                    .append(error.getSimpleName()).append('=').append(count.sum()));
+
+            Histogram histogram = rtt;
+            String percentiles = histogram == null ? "" : String.format(" rtt p50=%.1fms p99=%.1fms",
+                    histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0);
+
+            return String.format("%s srtt=%.1fms rttvar=%.1fms score=%.1fms rto=%dms%s responses=%d timeouts=%d%s",
+                    address.getHostAddress(), getSmoothedRTT(), getRTTVariance(), getSelectionScore(), getRetransmitTimeoutMillis(),
+                    percentiles, getResponses(), getTimeouts(), errorCounts);
+        }
+    }
+
+    private final Map<InetAddress, Entry> servers = new ConcurrentHashMap<>();
+    private final AtomicBoolean pruning = new AtomicBoolean();
+
+    // totals over all servers, including the ones that have been forgotten
+    private final Histogram rtt = new Histogram();
+    private final LongAdder timeouts = new LongAdder();
+    private final Map<Class<? extends ResponseException>, LongAdder> errors = new ConcurrentHashMap<>();
+
+    private ServerStats() {
+
+    }
+
+    public static ServerStats getServerStats() {
+        return serverStats;
+    }
+
+    public Entry getEntry(InetAddress address) {
+
+        Entry entry = servers.get(address);
+        if (entry == null) {
+            entry = servers.computeIfAbsent(address, Entry::new);
+            if (servers.size() > MAX_SERVERS)
+                prune();
+        }
+
+        entry.lastUsed = CoarseClock.currentTimeMillis();
+        return entry;
+    }
+
+    public Collection<Entry> getEntries() {
+        return servers.values();
+    }
+
+    // round trip times of answered queries to any server, in microseconds
+    public Histogram getRTTHistogram() {
+        return rtt;
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    // gives each of the servers a round trip time histogram of its own; a histogram is a
+    // few kilobytes, so this is for a handful of servers, and they are never forgotten
+    public void trackRTTHistograms(Collection<InetAddress> addresses) {
+        for (InetAddress address : addresses) {
+            Entry entry = getEntry(address);
+            synchronized (entry) {
+                if (entry.rtt == null)
+                    entry.rtt = new Histogram();
+            }
+        }
+    }
+
+    public Map<Class<? extends ResponseException>, Long> getErrors() {
+        Map<Class<? extends ResponseException>, Long> counts = new HashMap<>();
+        errors.forEach((error, count) -> counts.put(error, count.sum()));
+        return counts;
+    }
+
+    // forgets the least recently used servers, except those with a histogram of their own;
+    // one thread prunes at a time and the others
+    // carry on, since the map only grows a little past MAX_SERVERS in the meantime
+    private void prune() {
+
+        if (!pruning.compareAndSet(false, true))
+            return;
+
+        try {
+            List<Entry> entries = new ArrayList<>();
+            for (Entry entry : servers.values())
+                if (entry.rtt == null)
+                    entries.add(entry);
+            int excess = Math.min(entries.size(), servers.size() - PRUNED_SERVERS);
+            if (excess <= 0)
+                return;
+
+            entries.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+            for (int i = 0; i < excess; i++)
+                servers.remove(entries.get(i).address, entries.get(i));
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    public void recordResponse(InetAddress address, long rttNanos) {
+        Entry entry = getEntry(address);
+        entry.responses.increment();
+        rtt.record(rttNanos / 1000);
+        Histogram histogram = entry.rtt;
+        if (histogram != null)
+            histogram.record(rttNanos / 1000);
+        entry.recordRoundTrip(rttNanos / 1_000_000.0);
+        entry.resetBackoff();
+    }
+
+    // a query that was abandoned after rttNanos without an answer took at least that long;
+    // that is a lower bound rather than a measurement, so it is kept out of the RTT estimator
+    // (Karn's rule) and only keeps the server from being preferred over the one that won
+    public void recordUnanswered(InetAddress address, long rttNanos) {
+        getEntry(address).raiseSelectionScore(rttNanos / 1_000_000.0);
+    }
+
+    public void recordTimeout(InetAddress address) {
+        Entry entry = getEntry(address);
+        entry.timeouts.increment();
+        timeouts.increment();
+        entry.penalize(TIMEOUT_PENALTY_FACTOR, MIN_TIMEOUT_PENALTY_MILLIS);
+        entry.backOff();
+    }
+
+    // error rcodes are counted by the ResponseException subclass they map to
+    public void recordError(InetAddress address, ResponseException error) {
+        Entry entry = getEntry(address);
+        entry.errors.computeIfAbsent(error.getClass(), c -> new LongAdder()).increment();
+        errors.computeIfAbsent(error.getClass(), c -> new LongAdder()).increment();
+        entry.penalize(1, ERROR_PENALTY_MILLIS);
+    }
+
+    public long getRetransmitTimeoutMillis(InetAddress address) {
+        return getEntry(address).getRetransmitTimeoutMillis();
+    }
+
+    // returns the servers with the lowest selection score first; the servers behind the
+    // chosen one decay, so a server that was slow once is eventually tried again
+    public List<InetAddress> order(Collection<InetAddress> addresses) {
+        return toAddresses(sortBySelectionScore(addresses));
+    }
+
+    // spreads load over servers that can all answer, such as forwarders: the first server is
+    // picked at random, with odds inversely proportional to its selection score, and the
+    // others follow best first as failovers
+    public List<InetAddress> orderByWeight(Collection<InetAddress> addresses) {
+
+        List<Entry> entries = sortBySelectionScore(addresses);
+        if (entries.isEmpty())
+            return new ArrayList<>();
+
+        double[] weights = new double[entries.size()];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = 1 / Math.max(entries.get(i).getSelectionScore(), MIN_WEIGHTED_SCORE_MILLIS);
+            total += weights[i];
+        }
+
+        double pick = ThreadLocalRandom.current().nextDouble(total);
+        int chosen = 0;
+        while (chosen < weights.length - 1 && pick >= weights[chosen])
+            pick -= weights[chosen++];
+
+        entries.add(0, entries.remove(chosen));
+        return toAddresses(entries);
+    }
+
+    // nameserver sets are small, so an insertion sort is enough
+    private List<Entry> sortBySelectionScore(Collection<InetAddress> addresses) {
+
+        List<Entry> entries = new ArrayList<>(addresses.size());
+        for (InetAddress address : addresses) {
+            Entry entry = getEntry(address);
+            if (!entries.contains(entry))
+                entries.add(entry);
+        }
+
+        // sort on a snapshot of the estimates, since other threads keep updating them
+        double[] keys = new double[entries.size()];
+        for (int i = 0; i < keys.length; i++) {
+            Entry entry = entries.get(i);
+            double key = entry.getSelectionScore();
+
+            int j = i;
+            for (; j > 0 && keys[j - 1] > key; j--) {
+                keys[j] = keys[j - 1];
+                entries.set(j, entries.get(j - 1));
+            }
+            keys[j] = key;
+            entries.set(j, entry);
+        }
+
+        return entries;
+    }
+
+    // the servers behind the first one decay, so a server that was slow once is eventually
+    // tried again
+    private static List<InetAddress> toAddresses(List<Entry> entries) {
+
+        List<InetAddress> ordered = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0)
+                entries.get(i).decay();
+            ordered.add(entries.get(i).address);
+        }
+
+        return ordered;
+    }
+}
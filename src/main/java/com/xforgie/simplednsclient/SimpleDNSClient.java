@@ -1,11 +1,25 @@
 package com.xforgie.simplednsclient;
 
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -15,15 +29,58 @@ import org.apache.commons.cli.OptionGroup;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import com.xforgie.simplednsclient.responseerrors.NegativeAnswerException;
 import com.xforgie.simplednsclient.responseerrors.QueryHaltException;
 
 public class SimpleDNSClient {
 	
 	private static final int MAX_INDIRECTIONS = 10;
+	private static final String ROOT_ZONE = "";
+	
+	// rounds of retransmissions one resolution may spend across all of its queries
+	private static final int MAX_RETRIES_PER_RESOLUTION = 3;
+	
+	// how long a coalesced lookup waits on the one it attached to before resolving itself
+	private static final long MAX_COALESCED_WAIT_MILLIS = 30000;
+	
+	public static final int DEFAULT_PREFETCH_PERCENT = 10;
+	private static final double MAX_PREFETCHES_PER_SECOND = 20;
+	private static final int PREFETCH_THREADS = 2;
+	
+	// serve-stale, see RFC 8767 section 5
+	public static final long DEFAULT_STALE_WINDOW_SECONDS = 86400;
+	private static final long CLIENT_RESPONSE_TIMEOUT_MILLIS = 1800;
+	// the TTL stale records are answered with
+	public static final long STALE_ANSWER_TTL = 30;
+	private static final int STALE_REFRESH_THREADS = 16;
+	private static final int MAX_QUEUED_STALE_REFRESHES = 256;
+	
+	// addresses of nameservers without glue are looked up this many at a time
+	private static final int MAX_PARALLEL_NAMESERVER_LOOKUPS = 3;
+	private static final int NAMESERVER_LOOKUP_THREADS = 64;
+	private static final long NAMESERVER_LOOKUP_KEEP_ALIVE_SECONDS = 30;
 	
 	private InetAddress rootAddress;
+	
+	// recursive resolvers that lookups are forwarded to instead of iterating from the root
+	private List<InetAddress> forwarders = Collections.emptyList();
+	
 	private boolean tracing;
 	private Cache cache;
+	private int prefetchPercent = DEFAULT_PREFETCH_PERCENT;
+	private Prefetcher prefetcher;
+	private long staleWindowSeconds = DEFAULT_STALE_WINDOW_SECONDS;
+	
+	// resolutions that keep running after stale data was served in their place; once the
+	// queue is full, as it is when upstream is down, more stale data is served without one
+	private ExecutorService staleRefreshers;
+	private ConcurrentHashMap<SearchNode, CompletableFuture<Resolution>> staleRefreshes = new ConcurrentHashMap<>();
+	
+	// once every thread is busy, lookups run on the thread that needs them, as they would serially
+	private ExecutorService nameserverLookups;
+	
+	// identical lookups that are in flight at the same time share one iterative walk
+	private SingleFlight<SearchNode, Resolution> lookups = new SingleFlight<>(MAX_COALESCED_WAIT_MILLIS);
 	
 	public SimpleDNSClient(InetAddress rootAddress, boolean tracing) {
 		this.rootAddress = rootAddress;
@@ -35,12 +92,43 @@ public class SimpleDNSClient {
 		this(rootAddress, false);
 	}
 	
+	// forwards every lookup to one of the given recursive resolvers
+	public SimpleDNSClient(List<InetAddress> forwarders, boolean tracing) {
+		this.forwarders = new ArrayList<>(forwarders);
+		this.tracing = tracing;
+		cache = Cache.getCache();
+	}
+	
+	private boolean isForwarding() {
+		return !forwarders.isEmpty();
+	}
+	
+	// asks the forwarders for node; they resolve it recursively, so there are no referrals to follow
+	// returns a boolean indicating whether the query should close, or throws if the answer was negative
+	private boolean queryForwarders(SearchNode node, RetryBudget retryBudget) throws NegativeAnswerException {
+		
+		try {
+			return QueryHandler.forwardQueryAndCacheResponse(forwarders, node, retryBudget) == null;
+		} catch (NegativeAnswerException e) {
+			throw e;
+		} catch (QueryHaltException e) {
+			return true;
+		}
+	}
+	
 	// Initiates a new query to the next server in the iterative query
-	// returns a boolean indicating whether the query should close
-	private boolean queryNextLevel(SearchNode node, Set<ResourceRecord> nameservers) {
+	// returns a boolean indicating whether the query should close, or throws if the answer was negative
+	private boolean queryNextLevel(SearchNode node, Set<ResourceRecord> nameservers, RetryBudget retryBudget) 
+			throws NegativeAnswerException {
+		return queryNextLevel(node, nameservers, retryBudget, false);
+	}
+	
+	// as above; a refresh ignores the cached result for node, which it is replacing
+	private boolean queryNextLevel(SearchNode node, Set<ResourceRecord> nameservers, RetryBudget retryBudget, 
+			boolean refresh) throws NegativeAnswerException {
 
         // if there are results in the cache that match node or no NS were returned, exit
-        if (getResultFromCache(node) != null || nameservers.isEmpty())
+        if ((!refresh && getResultFromCache(node) != null) || nameservers.isEmpty())
             return false;
 
         // if we reach an SOA, end query
@@ -49,53 +137,137 @@ public class SimpleDNSClient {
                 return true;
         }
 
-        // a set containing NS records for which we have IPv4 addresses for
-        Set<ResourceRecord> setToSearch = new LinkedHashSet<>();
+        // the zone the nameservers are authoritative for
+        String zone = nameservers.iterator().next().getHostName();
 
-        // fill setToSearch with NS records that are in the cache that have IPv4 addresses
-        nameservers.forEach(ns -> setToSearch.addAll(
-                cache.getResourceRecords(new SearchNode(ns.getTextResult(), RecordType.A))));
+        // the IPv4 addresses of the nameservers that are in the cache
+        List<InetAddress> servers = getCachedAddresses(nameservers);
+        Tracer.event(TraceEvent.Kind.REFERRAL, zone, null,
+                nameservers.size() + " nameservers, " + servers.size() + " addresses");
 
-        // if there is nothing to search, search for an IPv4 address for the first nameserver
+        // if there is nothing to search, search for IPv4 addresses of several nameservers at once
         // otherwise, continue the search using the first match that we found
-        if (setToSearch.isEmpty()) {
-            ResourceRecord ns = nameservers.iterator().next();
-            SearchNode nameserverSearchNode = new SearchNode(ns.getTextResult(), RecordType.A);
-            Set<ResourceRecord> searchNS = searchDNS(nameserverSearchNode, 0);
+        if (servers.isEmpty()) {
+            List<ResourceRecord> unresolved = new ArrayList<>(nameservers);
 
-            // if we couldn't find an address for the nameserver, fail the query
-            if (searchNS.isEmpty())
-                return true;
+            for (int i = 0; i < unresolved.size(); i += MAX_PARALLEL_NAMESERVER_LOOKUPS) {
+                InetAddress address = lookupFirstAddress(unresolved.subList(i, 
+                        Math.min(i + MAX_PARALLEL_NAMESERVER_LOOKUPS, unresolved.size())), retryBudget);
+
+                // resume searching from original position in which we were stuck
+                if (address != null)
+                    return queryServers(node, Collections.singletonList(address), zone, retryBudget, refresh);
+            }
 
-            // if we found an address, resume searching from original position in which we were stuck
-            return queryServer(node, searchNS.iterator().next().getInetResult());
+            // if we couldn't find an address for any nameserver, fail the query
+            return true;
 
         } else {
-            ResourceRecord r = setToSearch.iterator().next();
-            return queryServer(node, r.getInetResult());
+            // every known address is a candidate, so a slow first server can be hedged around
+            return queryServers(node, servers, zone, retryBudget, refresh);
         }
     }
 	
-	// Begins an iterative query to the specified server
-	// returns a boolean indicating whether the query should close
-	private boolean queryServer(SearchNode node, InetAddress server) {
+	// looks up the addresses of the nameservers concurrently and returns the first one found,
+	// or null if none of them resolved; the lookups still running carry on in the background
+	// and cache their addresses for the next referral to the zone
+	private InetAddress lookupFirstAddress(List<ResourceRecord> nameservers, RetryBudget retryBudget) {
+		
+		CompletableFuture<InetAddress> first = new CompletableFuture<>();
+		AtomicInteger remaining = new AtomicInteger(nameservers.size());
+		
+		for (ResourceRecord ns : nameservers) {
+			
+			SearchNode nameserverSearchNode = new SearchNode(ns.getTextResult(), RecordType.A);
+			Runnable task = () -> {
+				try {
+					Set<ResourceRecord> addresses = lookup(nameserverSearchNode, retryBudget).getRecords();
+					if (!addresses.isEmpty())
+						first.complete(addresses.iterator().next().getInetResult());
+				} finally {
+					if (remaining.decrementAndGet() == 0)
+						first.complete(null);
+				}
+			};
+			nameserverLookups.execute(Tracer.wrap(lookups.wrap(task)));
+			
+			// a lookup without a free thread ran on this one and may already have found an address
+			if (first.isDone())
+				break;
+		}
+		
+		try {
+			return first.get();
+		} catch (ExecutionException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	// the cached A records of the nameservers, in order
+	private List<InetAddress> getCachedAddresses(Set<ResourceRecord> nameservers) {
+		
+		Set<ResourceRecord> addresses = new LinkedHashSet<>();
+		nameservers.forEach(ns -> addresses.addAll(
+				cache.getResourceRecords(new SearchNode(ns.getTextResult(), RecordType.A))));
+		
+		List<InetAddress> servers = new ArrayList<>();
+		addresses.forEach(r -> servers.add(r.getInetResult()));
+		return servers;
+	}
+	
+	// Begins an iterative query to the specified server, which is authoritative for zone
+	// returns a boolean indicating whether the query should close, or throws if the answer was negative
+	private boolean queryServer(SearchNode node, InetAddress server, String zone, RetryBudget retryBudget) 
+			throws NegativeAnswerException {
+		return queryServers(node, Collections.singletonList(server), zone, retryBudget, false);
+	}
+	
+	// Begins an iterative query to the first of the specified servers to answer
+	// returns a boolean indicating whether the query should close, or throws if the answer was negative
+	private boolean queryServers(SearchNode node, List<InetAddress> servers, String zone, 
+			RetryBudget retryBudget, boolean refresh) throws NegativeAnswerException {
 
         try {
 
-            Set<ResourceRecord> nameservers = QueryHandler.sendQueryAndCacheResponse(server, node);
+            Set<ResourceRecord> nameservers = QueryHandler.sendQueryAndCacheResponse(
+            		servers, node, zone, retryBudget);
 
             // if server response failed, fail query
             if (nameservers == null)
                 return true;
 
+            // a refresh cannot stop at the cached answer it is replacing, so it stops once
+            // the servers answer instead of referring it further down
+            if (refresh && !isReferralBelow(nameservers, zone))
+                return false;
+
             // begin iterative query
-            return queryNextLevel(node, nameservers);
+            return queryNextLevel(node, nameservers, retryBudget, refresh);
 
+        } catch (NegativeAnswerException e) {
+            throw e;
         } catch (QueryHaltException e) {
             return true;
         }
     }
 	
+	// whether nameservers delegate a zone strictly below zone
+	private static boolean isReferralBelow(Set<ResourceRecord> nameservers, String zone) {
+		
+		if (nameservers.isEmpty())
+			return false;
+		
+		for (ResourceRecord ns : nameservers)
+			if (ns.getType() != RecordType.NS)
+				return false;
+		
+		String child = nameservers.iterator().next().getHostName();
+		return SearchNode.isSubdomain(child, zone) && !SearchNode.isSubdomain(zone, child);
+	}
+	
 	// returns DNSNode if there's a match to node, or a CNAME match to node
     private SearchNode getResultFromCache(SearchNode node) {
 
@@ -112,11 +284,58 @@ public class SimpleDNSClient {
         return null;
     }
 	
-	private Set<ResourceRecord> searchDNS(SearchNode node, int indirections) {
+	// resolves node again from the closest known zone cut, following referrals as a lookup
+	// would but ignoring the cached entry for node itself, so that a popular entry is
+	// replaced before it expires; runs on the prefetcher's threads
+	// returns whether an answer came back; if not, the entry simply expires as it would
+	// have without the refresh
+	private boolean refresh(SearchNode node) {
+		
+		// a refresh is not worth retransmitting; the entry is still valid
+		RetryBudget retryBudget = new RetryBudget(0);
+		
+		try {
+			if (isForwarding())
+				return !queryForwarders(node, retryBudget);
+			
+			Set<ResourceRecord> zoneCut = getClosestZoneCut(node.getHostName());
+			
+			return zoneCut == null ? 
+					!queryServers(node, Collections.singletonList(rootAddress), ROOT_ZONE, retryBudget, true) : 
+					!queryNextLevel(node, zoneCut, retryBudget, true);
+		} catch (NegativeAnswerException e) {
+			// the name or type is gone; its negative answer was cached if it could be
+			return false;
+		}
+	}
+	
+	// returns the NS records of the deepest ancestor of hostName (or hostName itself) that has
+	// at least one nameserver with a cached address, or null if iteration has to start at the root
+	private Set<ResourceRecord> getClosestZoneCut(String hostName) {
+		
+		String zone = hostName.trim();
+		if (zone.endsWith("."))
+			zone = zone.substring(0, zone.length() - 1);
+		
+		while (!zone.isEmpty()) {
+			
+			Set<ResourceRecord> nameservers = cache.getResourceRecords(new SearchNode(zone, RecordType.NS));
+			for (ResourceRecord ns : nameservers)
+				if (!cache.getResourceRecords(new SearchNode(ns.getTextResult(), RecordType.A)).isEmpty())
+					return nameservers;
+			
+			int dot = zone.indexOf('.');
+			zone = dot < 0 ? "" : zone.substring(dot + 1);
+		}
+		
+		return null;
+	}
+	
+	private Resolution searchDNS(SearchNode node, int indirections, RetryBudget retryBudget) {
 
         if (indirections >= MAX_INDIRECTIONS) {
-            System.out.println("Maximum number of indirection levels reached: Query was cancelled.");
-            return Collections.emptySet();
+            System.err.println("Maximum number of indirection levels reached: Query was cancelled.");
+            return Resolution.of(Resolution.Status.SERVFAIL);
         }
 
         // check if cache has result or matching CNAME
@@ -124,53 +343,284 @@ public class SimpleDNSClient {
         SearchNode cachedNode = getResultFromCache(node);
         if (cachedNode != null) {
             if (cachedNode.getType() == RecordType.CNAME && node.getType() != RecordType.CNAME) {
-                return searchDNS(new SearchNode(cachedNode.getHostName(), node.getType()), ++indirections);
+                Tracer.event(TraceEvent.Kind.CNAME, node.getHostName(), node.getType(), cachedNode.getHostName());
+                return searchDNS(new SearchNode(cachedNode.getHostName(), node.getType()), 
+                		++indirections, retryBudget);
             } else {
-                return cache.getResourceRecords(cachedNode);
+                Tracer.event(TraceEvent.Kind.CACHE_HIT, node.getHostName(), node.getType(), null);
+                return Resolution.of(cache.getResourceRecords(cachedNode));
             }
         }
 
-        // retrieve new result if nothing is found,
-        // end query if it returns true
-        if (queryServer(node, rootAddress))
-        	return Collections.emptySet();
+        // names and types already known not to exist are answered from the cache
+        Resolution.Status negativeResult = cache.getNegativeResult(node);
+        if (negativeResult != null) {
+            Tracer.event(TraceEvent.Kind.CACHE_HIT, node.getHostName(), node.getType(), negativeResult.name());
+            return Resolution.of(negativeResult);
+        }
+
+        // retrieve new result if nothing is found, starting from the closest zone we
+        // already know the nameservers of, end query if it returns true
+        // a negative answer is returned as is, whether or not it could be cached
+        boolean halted;
+        try {
+        	if (isForwarding()) {
+        		halted = queryForwarders(node, retryBudget);
+        	} else {
+        		Set<ResourceRecord> zoneCut = getClosestZoneCut(node.getHostName());
+        		halted = zoneCut == null ? 
+        				queryServer(node, rootAddress, ROOT_ZONE, retryBudget) : queryNextLevel(node, zoneCut, retryBudget);
+        	}
+        } catch (NegativeAnswerException e) {
+        	return Resolution.of(e.getStatus());
+        }
+
+        // without anything new in the cache, searching again would only repeat the same query
+        if (halted || getResultFromCache(node) == null)
+        	return Resolution.of(Resolution.Status.SERVFAIL);
 
         // call next level of getResults after new rr's have been stored in the cache
-        return searchDNS(node, 0);
+        return searchDNS(node, 0, retryBudget);
     }
 	
+	// resolves hostname iteratively; the result is either the records found, or whether
+	// the name or type does not exist or could not be resolved
+	// safe to call from many threads at once
+	public Resolution resolve(String hostname, RecordType rtype) {
+		
+		long start = System.nanoTime();
+		SearchNode node = new SearchNode(hostname, rtype);
+		RetryBudget retryBudget = new RetryBudget(MAX_RETRIES_PER_RESOLUTION);
+		Tracer.Span span = Tracer.startResolution(node);
+		
+		// answered from the cache without a lookup if possible
+		Resolution resolution = getCachedResolution(node);
+		ResolverMetrics.getMetrics().recordCacheLookup(resolution);
+		
+		if (resolution != null) {
+			Tracer.event(TraceEvent.Kind.CACHE_HIT, node.getHostName(), node.getType(), null);
+		} else {
+			Set<ResourceRecord> stale = getStaleRecords(node);
+			resolution = stale.isEmpty() ? 
+					lookup(node, retryBudget) : resolveOrServeStale(node, stale, retryBudget);
+		}
+		
+		// a lookup behind a stale answer carries on spending the budget, so the queries are
+		// counted once, as of when the answer was chosen
+		int queries = retryBudget.getQueries();
+		ResolverMetrics.getMetrics().recordLookup(System.nanoTime() - start, queries, resolution.getStatus());
+		Tracer.end(span, resolution.getStatus().name(), "queries " + queries);
+		return resolution;
+	}
+	
+	// the records at the end of the cached CNAME chain from node, where some link of the chain
+	// or the records themselves have expired but are still inside the stale window; empty if
+	// the chain breaks off or ends without records
+	private Set<ResourceRecord> getStaleRecords(SearchNode node) {
+		
+		for (int i = 0; i < MAX_INDIRECTIONS; i++) {
+			
+			Set<ResourceRecord> records = getFreshOrStaleRecords(node);
+			if (!records.isEmpty())
+				return records;
+			
+			if (node.getType() == RecordType.CNAME)
+				break;
+			
+			Set<ResourceRecord> cnames = getFreshOrStaleRecords(new SearchNode(node.getHostName(), RecordType.CNAME));
+			if (cnames.isEmpty())
+				break;
+			
+			node = new SearchNode(cnames.iterator().next().getTextResult(), node.getType());
+		}
+		
+		return Collections.emptySet();
+	}
+	
+	private Set<ResourceRecord> getFreshOrStaleRecords(SearchNode node) {
+		Set<ResourceRecord> records = cache.getResourceRecords(node);
+		return records.isEmpty() ? cache.getStaleRecords(node) : records;
+	}
+	
+	// waits for a fresh resolution of node until the client response timeout, and answers with
+	// the stale records, with a short TTL, if it has not finished by then or has failed;
+	// the resolution carries on in the background either way and refreshes the cache
+	private Resolution resolveOrServeStale(SearchNode node, Set<ResourceRecord> stale, RetryBudget retryBudget) {
+		
+		CompletableFuture<Resolution> created = new CompletableFuture<>();
+		CompletableFuture<Resolution> refresh = staleRefreshes.putIfAbsent(node, created);
+		
+		if (refresh == null) {
+			refresh = created;
+			try {
+				staleRefreshers.execute(Tracer.wrap(() -> {
+					try {
+						created.complete(lookup(node, retryBudget));
+					} catch (RuntimeException e) {
+						created.completeExceptionally(e);
+					} finally {
+						staleRefreshes.remove(node, created);
+					}
+				}));
+			} catch (RejectedExecutionException e) {
+				staleRefreshes.remove(node, created);
+				created.completeExceptionally(e);
+			}
+		}
+		
+		try {
+			Resolution resolution = refresh.get(CLIENT_RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			if (resolution.getStatus() != Resolution.Status.SERVFAIL)
+				return resolution;
+		} catch (TimeoutException | ExecutionException e) {
+			// fall back to the stale records
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		Tracer.event(TraceEvent.Kind.CACHE_HIT, node.getHostName(), node.getType(), "stale");
+		Set<ResourceRecord> answers = new LinkedHashSet<>();
+		stale.forEach(record -> answers.add(record.withTTL(STALE_ANSWER_TTL)));
+		return Resolution.of(answers);
+	}
+	
+	// answers hostname from the cache alone, following cached CNAMEs, or returns null if
+	// that would take a query; never blocks
+	public Resolution resolveFromCache(String hostname, RecordType rtype) {
+		
+		long start = System.nanoTime();
+		Resolution resolution = getCachedResolution(new SearchNode(hostname, rtype));
+		
+		// a miss is counted by the resolution that follows it
+		if (resolution != null) {
+			ResolverMetrics.getMetrics().recordCacheLookup(resolution);
+			ResolverMetrics.getMetrics().recordLookup(System.nanoTime() - start, 0, resolution.getStatus());
+		}
+		return resolution;
+	}
+	
+	// reads each node on the way once, as a client lookup, so it counts once towards prefetching
+	private Resolution getCachedResolution(SearchNode node) {
+		
+		for (int i = 0; i < MAX_INDIRECTIONS; i++) {
+			
+			Set<ResourceRecord> records = cache.lookupResourceRecords(node);
+			if (!records.isEmpty())
+				return Resolution.of(records);
+			
+			Set<ResourceRecord> cnames = node.getType() == RecordType.CNAME ? Collections.emptySet() :
+					cache.lookupResourceRecords(new SearchNode(node.getHostName(), RecordType.CNAME));
+			if (cnames.isEmpty()) {
+				Resolution.Status negativeResult = cache.getNegativeResult(node);
+				return negativeResult == null ? null : Resolution.of(negativeResult);
+			}
+			
+			node = new SearchNode(cnames.iterator().next().getTextResult(), node.getType());
+		}
+		
+		return null;
+	}
+	
+	// a lookup made on behalf of another resolution spends that resolution's retry budget
+	private Resolution lookup(SearchNode node, RetryBudget retryBudget) {
+		
+		Tracer.Span span = Tracer.startLookup(node);
+		Resolution resolution = lookups.execute(node, () -> searchDNS(node, 0, retryBudget));
+		Tracer.end(span, resolution.getStatus().name());
+		return resolution;
+	}
+	
+	// lookups that attached to an identical lookup already in flight
+	public long getCoalescedLookups() {
+		return lookups.getCoalesced();
+	}
+	
 	private void searchAndPrint(String hostname, RecordType rtype) {
 		
 		SearchNode node = new SearchNode(hostname, rtype);
-		Set<ResourceRecord> results = searchDNS(node, 0);
+		Resolution resolution = resolve(hostname, rtype);
 		
-		if (results.isEmpty())
+		if (resolution.getStatus() == Resolution.Status.SERVFAIL)
             System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), -1, "0.0.0.0");
+		else if (resolution.isEmpty())
+            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
+                    node.getType(), -1, resolution.getStatus());
 		
-        for (ResourceRecord record : results)
+        for (ResourceRecord record : resolution.getRecords())
             System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), record.getTTL(), record.getTextResult());
 	}
 	
-	public void run() {
+	// opens the upstream socket; must be called before resolving
+	public void start() {
 		
-		if (rootAddress == null) {
+		if (rootAddress == null && !isForwarding()) {
 			System.err.println("Root address is null. Server could not be started.");
 			System.exit(1);
 		}
-
-		System.out.printf("Simple DNS Client\nRoot Server: %s\n", 
-				rootAddress.getHostAddress());
 		
 		try {
 			QueryHandler.openSocket();
-        } catch (SocketException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
 		
 		QueryHandler.setTracing(tracing);
+		ServerStats.getServerStats().trackRTTHistograms(forwarders);
+		ResolverMetrics.getMetrics().setClient(this);
+		ResolverMetrics.getMetrics().registerMBean();
+		
+		cache.setStaleWindow(staleWindowSeconds * 1000);
+		staleRefreshers = new ThreadPoolExecutor(STALE_REFRESH_THREADS, STALE_REFRESH_THREADS, 0, 
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_STALE_REFRESHES), r -> {
+					Thread t = new Thread(r, "stale-refresh");
+					t.setDaemon(true);
+					return t;
+				});
+		
+		nameserverLookups = new ThreadPoolExecutor(0, NAMESERVER_LOOKUP_THREADS, 
+				NAMESERVER_LOOKUP_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+					Thread t = new Thread(r, "nameserver-lookup");
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		
+		// popular records are refreshed in the background before they expire
+		if (prefetchPercent > 0) {
+			prefetcher = new Prefetcher(this::refresh, MAX_PREFETCHES_PER_SECOND, PREFETCH_THREADS);
+			cache.setPrefetchHandler(prefetcher::request, prefetchPercent / 100.0);
+		}
+	}
+	
+	// expired records are kept and served for this long when upstream is slow or failing;
+	// 0 turns serve-stale off; must be called before start
+	public void setStaleWindowSeconds(long seconds) {
+		this.staleWindowSeconds = seconds;
+	}
+	
+	// entries read in the last percent of their TTL are refreshed ahead of expiry; 0 turns
+	// prefetching off; must be called before start
+	public void setPrefetchPercent(int percent) {
+		this.prefetchPercent = percent;
+	}
+	
+	// background refreshes that got a fresh answer
+	public long getPrefetches() {
+		return prefetcher == null ? 0 : prefetcher.getRefreshed();
+	}
+	
+	public void run() {
+		
+		start();
+
+		if (isForwarding())
+			System.out.printf("Simple DNS Client\nForwarders: %s\n", forwarders.stream()
+					.map(InetAddress::getHostAddress).collect(Collectors.joining(", ")));
+		else
+			System.out.printf("Simple DNS Client\nRoot Server: %s\n", 
+					rootAddress.getHostAddress());
 		
 		Scanner scanner = new Scanner(System.in);
 		
@@ -180,9 +630,12 @@ public class SimpleDNSClient {
 				desc("Displays list of available commands").build();
 		Option quitOption = Option.builder().longOpt("quit").
 				desc("Quits the application").build();
+		Option statsOption = Option.builder().longOpt("stats").
+				desc("Displays resolver metrics").build();
 		
 		OptionGroup optionGroup = new OptionGroup();
 		optionGroup.addOption(lookupOption);
+		optionGroup.addOption(statsOption);
 		optionGroup.addOption(helpOption);
 		optionGroup.addOption(quitOption);
 		
@@ -219,12 +672,15 @@ public class SimpleDNSClient {
 				String hostname = (String)cmd.getParsedOptionValue(lookupOption);
 				searchAndPrint(hostname, RecordType.A);
 				
+			} else if (cmd.hasOption(statsOption.getLongOpt())) {
+				System.out.print(ResolverMetrics.getMetrics().dump());
 			} else if (cmd.hasOption(quitOption.getLongOpt())) {
 				break;
 			} else if (cmd.hasOption(helpOption.getLongOpt())) {
 				System.out.printf("Valid commands are:\n");
 				System.out.printf("    %-20s %s\n", lookupOption.getLongOpt() + 
 						" <" + lookupOption.getArgName() + ">", lookupOption.getDescription());				
+				System.out.printf("    %-20s %s\n", statsOption.getLongOpt(), statsOption.getDescription());
 				System.out.printf("    %-20s %s\n", helpOption.getLongOpt(), helpOption.getDescription());
 				System.out.printf("    %-20s %s\n", quitOption.getLongOpt(), quitOption.getDescription());
 			}
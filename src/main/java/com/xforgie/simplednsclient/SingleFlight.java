@@ -0,0 +1,100 @@
+package com.xforgie.simplednsclient;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ *
+ * Coalesces concurrent calls for the same key: the first caller does the work and
+ * every caller that arrives while it is running waits for, and shares, its result.
+ *
+ */
+
+public class SingleFlight<K, V> {
+
+    // keys the current thread is computing, so a lookup that depends on itself runs
+    // directly instead of waiting on its own result
+    private final ThreadLocal<Set<K>> ownedKeys = ThreadLocal.withInitial(HashSet::new);
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final long maxWaitMillis;
+
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    // waiters give up after maxWaitMillis and do the work themselves, which also breaks
+    // dependency cycles between threads
+    public SingleFlight(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public V execute(K key, Supplier<V> work) {
+
+        Set<K> owned = ownedKeys.get();
+        if (owned.contains(key))
+            return work.get();
+
+        CompletableFuture<V> pending = new CompletableFuture<>();
+        CompletableFuture<V> leader = inFlight.putIfAbsent(key, pending);
+
+        if (leader != null) {
+            coalesced.increment();
+            try {
+                return leader.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                return work.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return work.get();
+            }
+        }
+
+        executed.increment();
+        owned.add(key);
+        try {
+            V result = work.get();
+            pending.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            owned.remove(key);
+            inFlight.remove(key, pending);
+        }
+    }
+
+    // returns task made part of the calls the current thread is making, so that when it
+    // runs on another thread, work that depends on one of them still runs directly
+    // instead of waiting on a result that is waiting on it
+    public Runnable wrap(Runnable task) {
+
+        Set<K> inherited = new HashSet<>(ownedKeys.get());
+        return () -> {
+            Set<K> previous = ownedKeys.get();
+            ownedKeys.set(new HashSet<>(inherited));
+            try {
+                task.run();
+            } finally {
+                ownedKeys.set(previous);
+            }
+        };
+    }
+
+    // calls that did the work themselves
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    // calls that attached to a call already in flight
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+}
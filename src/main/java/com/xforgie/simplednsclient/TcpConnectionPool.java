@@ -0,0 +1,381 @@
+package com.xforgie.simplednsclient;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Sends queries over persistent TCP connections, as RFC 7766 describes. Each server gets
+ * a few connections, each of which carries many pipelined queries at once; replies may
+ * come back in any order and are matched by transaction ID and question. Connections
+ * that stay idle are closed.
+ *
+ */
+
+public class TcpConnectionPool implements Closeable {
+
+    private static final int MAX_TRANSACTION_IDS = 0x10000;
+
+    private final int maxConnectionsPerServer;
+    private final int maxPipelinedQueries;
+    private final long idleTimeoutMillis;
+    private final int udpPayloadSize;
+
+    private final Map<InetSocketAddress, List<Connection>> connections = new ConcurrentHashMap<>();
+
+    // connecting and writing block, so they never run on the caller's thread
+    private final ExecutorService senders;
+    private final ScheduledThreadPoolExecutor timer;
+    // IDs are drawn as unpredictably as those of UDP queries
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile boolean running = true;
+
+    // a query waiting on its reply on one connection
+    private static class PendingQuery {
+
+        private final ByteBuffer query;
+        private final int questionEnd;
+        private final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        private volatile ScheduledFuture<?> timeout;
+        // the transaction ID on the connection it was sent on
+        private int id;
+
+        private PendingQuery(ByteBuffer query, int questionEnd) {
+            this.query = query;
+            this.questionEnd = questionEnd;
+        }
+    }
+
+    private class Connection {
+
+        private final InetSocketAddress server;
+        // the list of the server's connections this one is in
+        private final List<Connection> serverConnections;
+        private final SocketChannel channel;
+        private final Map<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+
+        // guards connecting and writing, so messages are never interleaved
+        private final Object writeLock = new Object();
+        private boolean connected;
+
+        private volatile boolean closed;
+        private volatile long lastActive = System.currentTimeMillis();
+
+        private Connection(InetSocketAddress server, List<Connection> serverConnections) throws IOException {
+            this.server = server;
+            this.serverConnections = serverConnections;
+            this.channel = SocketChannel.open();
+        }
+
+        // reserves a transaction ID on this connection and stamps it into the query
+        private void register(PendingQuery query) {
+
+            while (true) {
+                int id = random.nextInt(MAX_TRANSACTION_IDS);
+                if (pending.putIfAbsent(id, query) == null) {
+                    QueryEncoder.rewriteID(query.query, id);
+                    query.id = id;
+                    return;
+                }
+            }
+        }
+
+        // connects on first use, then writes the query with its two byte length prefix
+        private void send(PendingQuery query, int connectTimeoutMillis) {
+
+            try {
+                synchronized (writeLock) {
+
+                    if (closed)
+                        throw new ClosedChannelException();
+
+                    if (!connected) {
+                        channel.socket().connect(server, connectTimeoutMillis);
+                        channel.socket().setTcpNoDelay(true);
+                        connected = true;
+
+                        Thread reader = new Thread(this::readReplies, "tcp-connection-" + server);
+                        reader.setDaemon(true);
+                        reader.start();
+                    }
+
+                    if (query.result.isDone())
+                        return;
+
+                    ByteBuffer length = ByteBuffer.allocate(2);
+                    length.putShort(0, (short) query.query.remaining());
+
+                    ByteBuffer[] message = { length, query.query.duplicate() };
+                    while (message[1].hasRemaining())
+                        channel.write(message);
+                }
+
+                lastActive = System.currentTimeMillis();
+
+            } catch (IOException e) {
+                query.result.completeExceptionally(e);
+                close(e);
+            }
+        }
+
+        private void readReplies() {
+
+            ByteBuffer length = ByteBuffer.allocate(2);
+
+            try {
+                while (!closed) {
+
+                    length.clear();
+                    readFully(length);
+
+                    ByteBuffer response = ByteBuffer.allocate(length.getShort(0) & 0xFFFF);
+                    readFully(response);
+                    response.flip();
+
+                    lastActive = System.currentTimeMillis();
+                    dispatch(response);
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void readFully(ByteBuffer dst) throws IOException {
+            while (dst.hasRemaining())
+                if (channel.read(dst) < 0)
+                    throw new EOFException("Connection closed by " + server);
+        }
+
+        // hands a reply to its waiter, dropping late or mismatched replies
+        private void dispatch(ByteBuffer response) {
+
+            if (response.remaining() < QueryEncoder.HEADER_SIZE)
+                return;
+
+            int id = response.getShort(0) & 0xFFFF;
+            PendingQuery query = pending.get(id);
+            if (query == null || !QueryEncoder.sameQuestion(query.query, query.questionEnd, response))
+                return;
+
+            if (pending.remove(id, query))
+                query.result.complete(response);
+        }
+
+        private boolean isIdle(long now) {
+            return pending.isEmpty() && now - lastActive >= idleTimeoutMillis;
+        }
+
+        // fails every query still waiting on this connection
+        private void close(IOException cause) {
+
+            synchronized (serverConnections) {
+                if (closed)
+                    return;
+                closed = true;
+                serverConnections.remove(this);
+
+                // a server that is no longer queried does not keep an entry forever
+                if (serverConnections.isEmpty())
+                    connections.remove(server, serverConnections);
+            }
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing useful to do while closing
+            }
+
+            pending.values().forEach(query -> query.result.completeExceptionally(cause));
+        }
+    }
+
+    // each server gets up to maxConnectionsPerServer connections; a new one is only opened
+    // once every open one carries maxPipelinedQueries queries
+    public TcpConnectionPool(int maxConnectionsPerServer, int maxPipelinedQueries,
+            long idleTimeoutMillis, int udpPayloadSize) {
+
+        this.maxConnectionsPerServer = maxConnectionsPerServer;
+        this.maxPipelinedQueries = maxPipelinedQueries;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.udpPayloadSize = udpPayloadSize;
+
+        senders = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "tcp-sender");
+            t.setDaemon(true);
+            return t;
+        });
+
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "tcp-pool-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        timer.scheduleWithFixedDelay(this::closeIdleConnections,
+                idleTimeoutMillis, idleTimeoutMillis / 2, TimeUnit.MILLISECONDS);
+    }
+
+    // servers with connections open
+    int getServers() {
+        return connections.size();
+    }
+
+    public int getOpenConnections() {
+        int open = 0;
+        for (List<Connection> serverConnections : connections.values())
+            synchronized (serverConnections) {
+                open += serverConnections.size();
+            }
+        return open;
+    }
+
+    // sends a query for node to server over TCP; the returned future completes with the
+    // matching reply, or exceptionally with a SocketTimeoutException if none arrives within
+    // timeoutMillis, or with an IOException if the connection fails
+    public CompletableFuture<ByteBuffer> query(InetSocketAddress server, SearchNode node, long timeoutMillis) {
+        return query(server, node, 0, timeoutMillis);
+    }
+
+    // as above, with header flags such as QueryEncoder.FLAG_RD
+    public CompletableFuture<ByteBuffer> query(InetSocketAddress server, SearchNode node, int flags,
+            long timeoutMillis) {
+
+        ByteBuffer packet = ByteBuffer.allocate(QueryEncoder.HEADER_SIZE +
+                QueryEncoder.MAX_QUESTION_SIZE + QueryEncoder.OPT_RECORD_SIZE);
+
+        PendingQuery query;
+        try {
+            int questionEnd = QueryEncoder.writeQuery(packet, 0, flags, node, udpPayloadSize);
+            packet.flip();
+            query = new PendingQuery(packet, questionEnd);
+        } catch (IllegalArgumentException e) {
+            CompletableFuture<ByteBuffer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        if (!running) {
+            query.result.completeExceptionally(new ClosedChannelException());
+            return query.result;
+        }
+
+        Connection connection;
+        try {
+            connection = register(server, query);
+        } catch (IOException e) {
+            query.result.completeExceptionally(e);
+            return query.result;
+        }
+
+        query.result.whenComplete((response, e) -> {
+            connection.pending.remove(query.id, query);
+            connection.lastActive = System.currentTimeMillis();
+            ScheduledFuture<?> timeout = query.timeout;
+            if (timeout != null)
+                timeout.cancel(false);
+        });
+
+        query.timeout = timer.schedule(
+                () -> query.result.completeExceptionally(new SocketTimeoutException()),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+
+        senders.execute(() -> connection.send(query, (int) timeoutMillis));
+        return query.result;
+    }
+
+    // picks a connection to server for query and reserves its transaction ID there
+    private Connection register(InetSocketAddress server, PendingQuery query) throws IOException {
+
+        while (true) {
+            List<Connection> serverConnections = getConnections(server);
+            synchronized (serverConnections) {
+
+                // the list was pruned after its last connection closed; start over
+                if (connections.get(server) != serverConnections)
+                    continue;
+
+                Connection connection = selectConnection(server, serverConnections);
+                // registered under the lock, so the connection cannot be closed as idle first
+                connection.register(query);
+                return connection;
+            }
+        }
+    }
+
+    private List<Connection> getConnections(InetSocketAddress server) {
+        return connections.computeIfAbsent(server, s -> new ArrayList<>());
+    }
+
+    // the least loaded connection, or a new one if all of them are full and the server
+    // has connections to spare; must hold the lock on serverConnections
+    private Connection selectConnection(InetSocketAddress server, List<Connection> serverConnections)
+            throws IOException {
+
+        Connection leastLoaded = null;
+        for (Connection connection : serverConnections)
+            if (leastLoaded == null || connection.pending.size() < leastLoaded.pending.size())
+                leastLoaded = connection;
+
+        if (leastLoaded != null && (leastLoaded.pending.size() < maxPipelinedQueries ||
+                serverConnections.size() >= maxConnectionsPerServer))
+            return leastLoaded;
+
+        Connection connection = new Connection(server, serverConnections);
+        serverConnections.add(connection);
+        return connection;
+    }
+
+    private void closeIdleConnections() {
+
+        long now = System.currentTimeMillis();
+        IOException idle = new ClosedChannelException();
+
+        for (List<Connection> serverConnections : connections.values()) {
+
+            // closed under the lock, so no query can be registered on them in between
+            synchronized (serverConnections) {
+                List<Connection> idleConnections = new ArrayList<>();
+                for (Connection connection : serverConnections)
+                    if (connection.isIdle(now))
+                        idleConnections.add(connection);
+
+                idleConnections.forEach(connection -> connection.close(idle));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+
+        running = false;
+
+        List<Connection> open = new ArrayList<>();
+        for (List<Connection> serverConnections : connections.values())
+            synchronized (serverConnections) {
+                open.addAll(serverConnections);
+            }
+
+        open.forEach(connection -> connection.close(new ClosedChannelException()));
+
+        timer.shutdownNow();
+        senders.shutdownNow();
+    }
+}
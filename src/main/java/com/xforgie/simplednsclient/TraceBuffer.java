@@ -0,0 +1,80 @@
+package com.xforgie.simplednsclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ *
+ * A fixed size ring of trace events that any number of threads add to without locking,
+ * and one thread drains. Adding claims the next sequence number and never waits; when the
+ * drainer falls a whole ring behind, the oldest events are overwritten and counted as lost.
+ *
+ */
+
+public class TraceBuffer {
+
+    private final AtomicReferenceArray<TraceEvent> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    // guarded by this
+    private long read;
+    private volatile long lost;
+
+    // capacity is rounded up to a power of two
+    public TraceBuffer(int capacity) {
+
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    public void add(TraceEvent event) {
+
+        long sequence = next.getAndIncrement();
+        event.sequence = sequence;
+        slots.lazySet((int) sequence & mask, event);
+    }
+
+    // hands the events added since the last drain to sink, oldest first, and returns how many
+    // it handed over; stops early at an event that has been claimed but not yet written
+    public synchronized int drain(Consumer<TraceEvent> sink) {
+
+        long added = next.get();
+        if (added - read > slots.length()) {
+            lost += added - slots.length() - read;
+            read = added - slots.length();
+        }
+
+        int drained = 0;
+        while (read < added) {
+
+            TraceEvent event = slots.get((int) read & mask);
+            if (event == null || event.sequence < read)
+                break;
+
+            // overwritten by a writer a whole ring ahead
+            if (event.sequence > read) {
+                lost++;
+                read++;
+                continue;
+            }
+
+            sink.accept(event);
+            read++;
+            drained++;
+        }
+
+        return drained;
+    }
+
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    // events overwritten before they were drained
+    public long getLost() {
+        return lost;
+    }
+}
@@ -0,0 +1,106 @@
+package com.xforgie.simplednsclient;
+
+import java.net.InetAddress;
+
+/**
+ *
+ * One step of a traced resolution: a span with a start and a duration, or an instant
+ * event inside a span. Spans form a tree per resolution, linked by their parent span.
+ *
+ */
+
+public class TraceEvent {
+
+    public enum Kind {
+        // spans
+        RESOLVE, LOOKUP, QUERY,
+        // instant events
+        CACHE_HIT, CNAME, REFERRAL;
+
+        public boolean isSpan() {
+            return this == RESOLVE || this == LOOKUP || this == QUERY;
+        }
+    }
+
+    private final Kind kind;
+    private final long traceId;
+    private final long spanId;
+    private final long parentId;
+    // System.nanoTime
+    private final long startNanos;
+    private final long durationNanos;
+    private final String name;
+    private final RecordType type;
+    private final InetAddress server;
+    private final String outcome;
+    private final String detail;
+
+    // set by the TraceBuffer when the event is published
+    long sequence;
+
+    public TraceEvent(Kind kind, long traceId, long spanId, long parentId, long startNanos, long durationNanos,
+            String name, RecordType type, InetAddress server, String outcome, String detail) {
+        this.kind = kind;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentId = parentId;
+        this.startNanos = startNanos;
+        this.durationNanos = durationNanos;
+        this.name = name;
+        this.type = type;
+        this.server = server;
+        this.outcome = outcome;
+        this.detail = detail;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    // 0 for instant events
+    public long getSpanId() {
+        return spanId;
+    }
+
+    // 0 for the root span of a resolution
+    public long getParentId() {
+        return parentId;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    // 0 for instant events
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // may be null
+    public RecordType getType() {
+        return type;
+    }
+
+    // the server a query was sent to; null for other events
+    public InetAddress getServer() {
+        return server;
+    }
+
+    // how a span ended, such as NOERROR or timeout; may be null
+    public String getOutcome() {
+        return outcome;
+    }
+
+    // may be null
+    public String getDetail() {
+        return detail;
+    }
+}
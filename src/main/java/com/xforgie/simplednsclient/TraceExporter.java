@@ -0,0 +1,199 @@
+package com.xforgie.simplednsclient;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Drains the trace buffer on a background thread and writes its events to a file, either
+ * as JSON lines or in the Chrome trace event format, which chrome://tracing and Perfetto
+ * load directly. In the Chrome format every resolution gets its own track, named after the
+ * name it resolved, with its lookups and queries nested under it.
+ *
+ */
+
+public class TraceExporter implements Closeable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+    private static final long EXPORT_INTERVAL_MILLIS = 200;
+
+    public enum Format {
+        JSON, CHROME
+    }
+
+    // wall clock time of System.nanoTime() 0, so timestamps line up with other logs
+    private static final long EPOCH_OFFSET_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+    private final TraceBuffer buffer;
+    private final Format format;
+    private final Writer out;
+    private final Thread thread;
+
+    private volatile boolean closed;
+    private boolean first = true;
+    private long reportedLost;
+
+    public TraceExporter(String path, Format format, int bufferSize) throws IOException {
+
+        this.buffer = new TraceBuffer(bufferSize);
+        this.format = format;
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8));
+
+        thread = new Thread(this::run, "trace-exporter");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    // starts tracing and exporting
+    public void start() throws IOException {
+
+        if (format == Format.CHROME)
+            out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+
+        Tracer.enable(buffer);
+        thread.start();
+    }
+
+    // stops tracing and writes out what is left in the buffer
+    @Override
+    public void close() {
+
+        if (closed)
+            return;
+
+        closed = true;
+        Tracer.disable();
+        thread.interrupt();
+
+        try {
+            thread.join();
+            export();
+            if (format == Format.CHROME)
+                out.write("\n]}\n");
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Trace could not be written: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+
+        try {
+            while (!closed) {
+                export();
+                try {
+                    Thread.sleep(EXPORT_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    // closing
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Trace could not be written: " + e.getMessage());
+            Tracer.disable();
+        }
+    }
+
+    private void export() throws IOException {
+
+        StringBuilder sb = new StringBuilder();
+        buffer.drain(event -> {
+            if (format == Format.CHROME)
+                appendChrome(sb, event);
+            else
+                appendJSON(sb, event);
+        });
+
+        long lost = buffer.getLost();
+        if (lost > reportedLost) {
+            System.err.printf("Trace buffer overflowed; %d events lost\n", lost - reportedLost);
+            reportedLost = lost;
+        }
+
+        if (sb.length() > 0) {
+            out.write(sb.toString());
+            out.flush();
+        }
+    }
+
+    private static void appendJSON(StringBuilder sb, TraceEvent event) {
+
+        sb.append("{\"ts\":").append(event.getStartNanos() + EPOCH_OFFSET_NANOS)
+          .append(",\"event\":\"").append(event.getKind().name().toLowerCase()).append('"')
+          .append(",\"trace\":").append(event.getTraceId());
+        if (event.getKind().isSpan())
+            sb.append(",\"span\":").append(event.getSpanId());
+        sb.append(",\"parent\":").append(event.getParentId());
+        if (event.getKind().isSpan())
+            sb.append(",\"dur\":").append(event.getDurationNanos());
+
+        appendFields(sb, event);
+        sb.append("}\n");
+    }
+
+    private void appendChrome(StringBuilder sb, TraceEvent event) {
+
+        if (!first)
+            sb.append(",\n");
+        first = false;
+
+        String kind = event.getKind().name().toLowerCase();
+        sb.append("{\"name\":\"").append(kind).append(' ').append(JSON.escape(event.getName().trim()));
+        if (event.getType() != null)
+            sb.append(' ').append(event.getType());
+        sb.append("\",\"cat\":\"").append(kind).append('"')
+          .append(",\"pid\":1,\"tid\":").append(event.getTraceId())
+          .append(",\"ts\":");
+        appendMicros(sb, event.getStartNanos() + EPOCH_OFFSET_NANOS);
+
+        if (event.getKind().isSpan()) {
+            sb.append(",\"ph\":\"X\",\"dur\":");
+            appendMicros(sb, event.getDurationNanos());
+        } else {
+            sb.append(",\"ph\":\"i\",\"s\":\"t\"");
+        }
+
+        sb.append(",\"args\":{\"span\":").append(event.getSpanId()).append(",\"parent\":").append(event.getParentId());
+        appendFields(sb, event);
+        sb.append("}}");
+
+        // names the track of the resolution after what it resolved
+        if (event.getKind() == TraceEvent.Kind.RESOLVE)
+            sb.append(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(event.getTraceId())
+              .append(",\"args\":{\"name\":\"").append(JSON.escape(event.getName().trim()))
+              .append(' ').append(event.getType()).append("\"}}");
+    }
+
+    private static void appendFields(StringBuilder sb, TraceEvent event) {
+
+        sb.append(",\"name\":\"").append(JSON.escape(event.getName().trim())).append('"');
+        if (event.getType() != null)
+            sb.append(",\"type\":\"").append(event.getType()).append('"');
+        if (event.getServer() != null)
+            sb.append(",\"server\":\"").append(event.getServer().getHostAddress()).append('"');
+        if (event.getOutcome() != null)
+            sb.append(",\"outcome\":\"").append(JSON.escape(event.getOutcome())).append('"');
+        if (event.getDetail() != null)
+            sb.append(",\"detail\":\"").append(JSON.escape(event.getDetail())).append('"');
+    }
+
+    // nanoseconds as microseconds with three decimals, the unit of the Chrome format
+    private static void appendMicros(StringBuilder sb, long nanos) {
+
+        sb.append(nanos / 1000).append('.');
+        long fraction = nanos % 1000;
+        if (fraction < 100)
+            sb.append('0');
+        if (fraction < 10)
+            sb.append('0');
+        sb.append(fraction);
+    }
+}
@@ -0,0 +1,239 @@
+package com.xforgie.simplednsclient;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Records sampled resolutions as trees of spans (the resolution, the lookups it makes and
+ * the queries they send) and instant events (cache hits, CNAMEs and referrals followed),
+ * into a TraceBuffer that is exported in the background. The span a thread is working in
+ * is kept in a thread local, so nested lookups and their queries hang off it.
+ *
+ * Every call does nothing while tracing is off, and next to nothing for a resolution that
+ * was not sampled.
+ *
+ */
+
+public class Tracer {
+
+    // one resolution's spans and events
+    private static class Trace {
+
+        private final long id;
+
+        // events held until the resolution ends, when only slow resolutions are kept
+        private List<TraceEvent> held = new ArrayList<>();
+        private boolean finished;
+        private boolean kept;
+
+        private Trace(long id) {
+            this.id = id;
+        }
+    }
+
+    // an open span; null stands for no span, and UNSAMPLED for a resolution that is not traced
+    public static class Span {
+
+        private final Trace trace;
+        private final long id;
+        private final Span parent;
+        private final TraceEvent.Kind kind;
+        private final String name;
+        private final RecordType type;
+        private final InetAddress server;
+        private final long startNanos = System.nanoTime();
+
+        private Span(Trace trace, Span parent, TraceEvent.Kind kind, String name, RecordType type,
+                InetAddress server) {
+            this.trace = trace;
+            this.id = trace == null ? 0 : ids.incrementAndGet();
+            this.parent = parent;
+            this.kind = kind;
+            this.name = name;
+            this.type = type;
+            this.server = server;
+        }
+    }
+
+    private static final AtomicLong ids = new AtomicLong();
+    private static final Span UNSAMPLED = new Span(null, null, TraceEvent.Kind.RESOLVE, null, null, null);
+
+    private static final ThreadLocal<Span> current = new ThreadLocal<>();
+
+    private static volatile TraceBuffer buffer;
+    private static double samplePercent = 100;
+    private static long slowNanos;
+
+    // starts recording into buffer
+    public static void enable(TraceBuffer buffer) {
+        Tracer.buffer = buffer;
+    }
+
+    public static void disable() {
+        buffer = null;
+    }
+
+    public static boolean isEnabled() {
+        return buffer != null;
+    }
+
+    // the share of resolutions traced; must be called before enable
+    public static void setSamplePercent(double samplePercent) {
+        Tracer.samplePercent = samplePercent;
+    }
+
+    // only sampled resolutions that take at least this long are exported; 0 exports all of
+    // them; must be called before enable
+    public static void setSlowThresholdMillis(long millis) {
+        Tracer.slowNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    // opens the root span of a resolution of node, if it is sampled, and makes it current
+    public static Span startResolution(SearchNode node) {
+
+        if (buffer == null)
+            return null;
+
+        Span span = ThreadLocalRandom.current().nextDouble() * 100 < samplePercent ?
+                new Span(new Trace(ids.incrementAndGet()), null, TraceEvent.Kind.RESOLVE,
+                        node.getHostName(), node.getType(), null) : UNSAMPLED;
+
+        current.set(span);
+        return span;
+    }
+
+    // opens a span for a lookup made within the current span and makes it current
+    public static Span startLookup(SearchNode node) {
+
+        Span parent = current();
+        if (parent == null)
+            return null;
+
+        Span span = new Span(parent.trace, parent, TraceEvent.Kind.LOOKUP, node.getHostName(), node.getType(), null);
+        current.set(span);
+        return span;
+    }
+
+    // opens a span for a query to server within the current span; the span does not become
+    // current, so it may be ended from any thread
+    public static Span startQuery(InetAddress server, SearchNode node) {
+
+        Span parent = current();
+        if (parent == null)
+            return null;
+
+        return new Span(parent.trace, parent, TraceEvent.Kind.QUERY, node.getHostName(), node.getType(), server);
+    }
+
+    // records an instant event in the current span
+    public static void event(TraceEvent.Kind kind, String name, RecordType type, String detail) {
+
+        Span parent = current();
+        if (parent == null)
+            return;
+
+        record(parent.trace, new TraceEvent(kind, parent.trace.id, 0, parent.id, System.nanoTime(), 0,
+                name, type, null, null, detail));
+    }
+
+    public static void end(Span span, String outcome) {
+        end(span, outcome, null);
+    }
+
+    // closes span; a resolution or lookup span hands the current span back to its parent
+    public static void end(Span span, String outcome, String detail) {
+
+        if (span == null)
+            return;
+
+        if (span.kind != TraceEvent.Kind.QUERY)
+            current.set(span.parent);
+
+        if (span.trace == null)
+            return;
+
+        long duration = System.nanoTime() - span.startNanos;
+        TraceEvent event = new TraceEvent(span.kind, span.trace.id, span.id, span.parent == null ? 0 : span.parent.id,
+                span.startNanos, duration, span.name, span.type, span.server, outcome, detail);
+
+        if (span.parent == null)
+            finish(span.trace, event);
+        else
+            record(span.trace, event);
+    }
+
+    // runs task on another thread within the span current on this one
+    public static Runnable wrap(Runnable task) {
+
+        Span span = current.get();
+        if (span == null)
+            return task;
+
+        return () -> {
+            Span previous = current.get();
+            current.set(span);
+            try {
+                task.run();
+            } finally {
+                current.set(previous);
+            }
+        };
+    }
+
+    // the span new spans and events belong to, or null if there is none or it is not traced
+    private static Span current() {
+
+        if (buffer == null)
+            return null;
+
+        Span span = current.get();
+        return span == UNSAMPLED ? null : span;
+    }
+
+    private static void record(Trace trace, TraceEvent event) {
+
+        TraceBuffer target = buffer;
+        if (target == null)
+            return;
+
+        if (slowNanos == 0) {
+            target.add(event);
+            return;
+        }
+
+        // queries cancelled after the resolution ended still belong to it
+        synchronized (trace) {
+            if (!trace.finished)
+                trace.held.add(event);
+            else if (trace.kept)
+                target.add(event);
+        }
+    }
+
+    private static void finish(Trace trace, TraceEvent root) {
+
+        TraceBuffer target = buffer;
+        if (target == null)
+            return;
+
+        if (slowNanos == 0) {
+            target.add(root);
+            return;
+        }
+
+        synchronized (trace) {
+            trace.finished = true;
+            trace.kept = root.getDurationNanos() >= slowNanos;
+            if (trace.kept) {
+                trace.held.forEach(target::add);
+                target.add(root);
+            }
+            trace.held = null;
+        }
+    }
+}
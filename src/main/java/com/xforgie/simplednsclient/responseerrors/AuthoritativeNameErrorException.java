@@ -1,5 +1,7 @@
 package com.xforgie.simplednsclient.responseerrors;
 
+import com.xforgie.simplednsclient.DecodedPacket;
+
 public class AuthoritativeNameErrorException extends ResponseException {
 
     /**
@@ -7,6 +9,21 @@ public class AuthoritativeNameErrorException extends ResponseException {
 	 */
 	private static final long serialVersionUID = -1593566307459930481L;
 
+	private final transient DecodedPacket packet;
+
+	public AuthoritativeNameErrorException() {
+		this(null);
+	}
+
+	public AuthoritativeNameErrorException(DecodedPacket packet) {
+		this.packet = packet;
+	}
+
+	// the decoded response, if it was decoded, so its SOA can be used for negative caching
+	public DecodedPacket getPacket() {
+		return packet;
+	}
+
 	@Override
     public String getMessage() {
         return "AuthoritativeNameErrorException -- Domain name in query to nameserver does not exist";
@@ -0,0 +1,27 @@
+package com.xforgie.simplednsclient.responseerrors;
+
+import com.xforgie.simplednsclient.Resolution;
+
+public class NegativeAnswerException extends QueryHaltException {
+
+    /**
+	 * 
+	 */
+	private static final long serialVersionUID = 6120958374462813127L;
+
+	private final Resolution.Status status;
+
+	public NegativeAnswerException(Resolution.Status status) {
+		this.status = status;
+	}
+
+	// NXDOMAIN or NODATA, whether or not the answer could be cached
+	public Resolution.Status getStatus() {
+		return status;
+	}
+
+	@Override
+    public String getMessage() {
+        return "NegativeAnswerException -- Server answered that the name or type does not exist";
+    }
+}
@@ -0,0 +1,54 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Runs batches against a client that answers without any network.
+ *
+ */
+
+public class BatchResolverTest {
+
+    // answers every name with NXDOMAIN, except those starting with "boom", which throw
+    private static class ScriptedClient extends SimpleDNSClient {
+
+        private ScriptedClient() {
+            super(InetAddress.getLoopbackAddress());
+        }
+
+        @Override
+        public Resolution resolve(String hostname, RecordType rtype) {
+            if (hostname.startsWith("boom"))
+                throw new IllegalStateException("scripted failure");
+            return Resolution.of(Resolution.Status.NXDOMAIN);
+        }
+    }
+
+    @Test
+    public void failingLookupGetsAnErrorRow() throws Exception {
+
+        BatchResolver batch = new BatchResolver(new ScriptedClient(), "-", 1, BatchResolver.OutputFormat.CSV);
+        StringWriter out = new StringWriter();
+
+        batch.resolveAll(new BufferedReader(new StringReader("boom.test\nfine.test\n")), out);
+
+        List<String> rows = Arrays.asList(out.toString().split("\n"));
+        Collections.sort(rows);
+        assertEquals(3, rows.size());
+        assertEquals("0,boom.test,A,SERVFAIL,,", rows.get(0));
+        assertEquals("1,fine.test,A,NXDOMAIN,,", rows.get(1));
+        assertTrue(rows.get(2).startsWith("index,"));
+    }
+}
@@ -0,0 +1,135 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Exercises the shared cache directly; every test uses names of its own, since the cache
+ * outlives them.
+ *
+ */
+
+public class CacheTest {
+
+    private final Cache cache = Cache.getCache();
+    private final List<SearchNode> prefetched = new ArrayList<>();
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @AfterEach
+    public void restoreSettings() {
+        cache.setPrefetchHandler(null, 0);
+        cache.setStaleWindow(SimpleDNSClient.DEFAULT_STALE_WINDOW_SECONDS * 1000);
+    }
+
+    @Test
+    public void readSnapshotIsNotChangedByLaterWrites() throws Exception {
+
+        SearchNode node = new SearchNode("snapshot.cache.test", RecordType.A);
+        cache.addResourceRecord(new ResourceRecord(node.getHostName(), RecordType.A, 300,
+                InetAddress.getByName("10.0.0.1")));
+
+        Set<ResourceRecord> snapshot = cache.getResourceRecords(node);
+        cache.addResourceRecord(new ResourceRecord(node.getHostName(), RecordType.A, 300,
+                InetAddress.getByName("10.0.0.2")));
+
+        assertEquals(1, snapshot.size());
+        assertEquals(2, cache.getResourceRecords(node).size());
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.clear());
+    }
+
+    @Test
+    public void expiredRecordsAreNotReturnedBeforeTheyAreReclaimed() throws Exception {
+
+        SearchNode node = new SearchNode("expiring.cache.test", RecordType.A);
+        cache.addResourceRecord(new ResourceRecord(node.getHostName(), RecordType.A, 1,
+                InetAddress.getByName("10.0.0.1")));
+        cache.addResourceRecord(new ResourceRecord(node.getHostName(), RecordType.A, 300,
+                InetAddress.getByName("10.0.0.2")));
+        assertEquals(2, cache.getResourceRecords(node).size());
+
+        Thread.sleep(1100);
+
+        Set<ResourceRecord> records = cache.getResourceRecords(node);
+        assertEquals(1, records.size());
+        assertEquals("10.0.0.2", records.iterator().next().getTextResult());
+    }
+
+    @Test
+    public void staleRecordsLastUntilTheEndOfTheStaleWindow() throws Exception {
+
+        cache.setStaleWindow(1000);
+        SearchNode node = new SearchNode("stale.cache.test", RecordType.A);
+        cache.addResourceRecord(new ResourceRecord(node.getHostName(), RecordType.A, 1,
+                InetAddress.getByName("10.0.0.1")));
+
+        Thread.sleep(1100);
+        assertTrue(cache.getResourceRecords(node).isEmpty());
+        assertEquals(1, cache.getStaleRecords(node).size());
+
+        Thread.sleep(1000);
+        assertTrue(cache.getStaleRecords(node).isEmpty());
+    }
+
+    @Test
+    public void wheelReclaimsExpiredRecords() throws Exception {
+
+        cache.setStaleWindow(0);
+        long evictions = cache.getEvictions();
+        cache.addResourceRecord(new ResourceRecord("reclaimed.cache.test", RecordType.A, 1,
+                InetAddress.getByName("10.0.0.1")));
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (cache.getEvictions() == evictions && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+
+        assertTrue(cache.getEvictions() > evictions);
+    }
+
+    @Test
+    public void namesMatchWithoutCase() throws Exception {
+
+        cache.addResourceRecord(new ResourceRecord("mixed.cache.test", RecordType.A, 300,
+                InetAddress.getByName("10.0.0.5")));
+        cache.addNameError(new SearchNode("nx.cache.test", RecordType.A),
+                new ResourceRecord("cache.test", RecordType.SOA, 300, "ns. host. 1 2 3 4 300"), 300);
+
+        assertEquals(1, cache.getResourceRecords(new SearchNode("MiXeD.cAcHe.TeSt", RecordType.A)).size());
+        assertEquals(Resolution.Status.NXDOMAIN,
+                cache.getNegativeResult(new SearchNode("Nx.CACHE.test", RecordType.AAAA)));
+    }
+
+    @Test
+    public void singleLookupDoesNotPrefetch() throws Exception {
+
+        // a window as long as the TTL puts the entry in it from the start
+        cache.setPrefetchHandler(prefetched::add, 1.0);
+        ResourceRecord record = new ResourceRecord("prefetch.cache.test", RecordType.A, 300,
+                InetAddress.getByName("10.0.0.1"));
+        cache.addResourceRecord(record);
+
+        // reads made while resolving do not count
+        for (int i = 0; i < 3; i++)
+            cache.getResourceRecords(record.getNode());
+        cache.lookupResourceRecords(record.getNode());
+        assertTrue(prefetched.isEmpty());
+
+        cache.lookupResourceRecords(record.getNode());
+        assertEquals(1, prefetched.size());
+        assertEquals(record.getNode(), prefetched.get(0));
+
+        // once per snapshot
+        cache.lookupResourceRecords(record.getNode());
+        assertEquals(1, prefetched.size());
+    }
+}
@@ -0,0 +1,42 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Runs a wheel on its real one second ticks.
+ *
+ */
+
+public class ExpiryWheelTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Test
+    public void entriesExpireInOrderAndNotBefore() throws Exception {
+
+        List<String> expired = new CopyOnWriteArrayList<>();
+        ExpiryWheel<String> wheel = new ExpiryWheel<>("test-expiry", expired::add);
+
+        long now = CoarseClock.currentTimeMillis();
+        wheel.schedule("later", now + 2000);
+        wheel.schedule("soon", now + 1000);
+        // far enough out to sit in the second level
+        wheel.schedule("hours", now + 3_600_000);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (expired.size() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+
+        assertEquals("soon", expired.get(0));
+        assertEquals("later", expired.get(1));
+        assertTrue(CoarseClock.currentTimeMillis() >= now + 2000);
+        assertEquals(2, expired.size());
+    }
+}
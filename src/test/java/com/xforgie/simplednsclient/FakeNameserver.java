@@ -0,0 +1,99 @@
+package com.xforgie.simplednsclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.Arrays;
+
+/**
+ *
+ * The pieces of a nameserver that tests run on the loopback interface. It answers every
+ * question for NAME.test with an A record of 10.0.0.N, N being the length of NAME; names
+ * starting with "nx" do not exist, those starting with "silent" are never answered, and other
+ * types have no records. Negative answers come without an SOA, so they cannot be cached.
+ *
+ */
+
+public abstract class FakeNameserver {
+
+    public interface Server {
+        void run() throws IOException;
+    }
+
+    // runs server on a daemon thread until its socket is closed
+    public static void startDaemon(Server server) {
+
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                // the socket was closed at the end of the test
+            }
+        }, "fake-nameserver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // answers every query that arrives on udp, truncated if asked to
+    public static void serveUdp(DatagramSocket udp, boolean truncated) {
+
+        startDaemon(() -> {
+            byte[] buf = new byte[512];
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                udp.receive(packet);
+                byte[] reply = reply(Arrays.copyOf(buf, packet.getLength()), truncated);
+                if (reply != null)
+                    udp.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+            }
+        });
+    }
+
+    // the authoritative reply to query: its question and, unless truncated or negative, one A
+    // record; null if the query goes unanswered
+    public static byte[] reply(byte[] query, boolean truncated) throws IOException {
+
+        int questionEnd = QueryEncoder.HEADER_SIZE;
+        while (query[questionEnd] != 0)
+            questionEnd += (query[questionEnd] & 0xFF) + 1;
+        int questionType = ((query[questionEnd + 1] & 0xFF) << 8) | (query[questionEnd + 2] & 0xFF);
+        questionEnd += 5;
+
+        String firstLabel = new String(query, QueryEncoder.HEADER_SIZE + 1, query[QueryEncoder.HEADER_SIZE]);
+        if (firstLabel.startsWith("silent"))
+            return null;
+
+        boolean nameError = firstLabel.startsWith("nx");
+        boolean answered = !truncated && !nameError && questionType == RecordType.A.getCode();
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream reply = new DataOutputStream(buf);
+
+        // same ID, QR and AA set, TC as asked, NXDOMAIN for the names that do not exist
+        reply.write(query, 0, 2);
+        reply.writeShort(0x8400 | (truncated ? 0x0200 : 0) | (nameError ? 3 : 0));
+        reply.writeShort(1);
+        reply.writeShort(answered ? 1 : 0);
+        reply.writeShort(0);
+        reply.writeShort(0);
+        reply.write(query, QueryEncoder.HEADER_SIZE, questionEnd - QueryEncoder.HEADER_SIZE);
+
+        if (answered) {
+            // a pointer to the question name, then type A, class IN, TTL and the address
+            reply.writeShort(0xC000 | QueryEncoder.HEADER_SIZE);
+            reply.writeShort(RecordType.A.getCode());
+            reply.writeShort(1);
+            reply.writeInt(300);
+            reply.writeShort(4);
+            reply.write(addressFor(firstLabel));
+        }
+
+        return buf.toByteArray();
+    }
+
+    public static byte[] addressFor(String name) {
+        return new byte[] { 10, 0, 0, (byte) name.length() };
+    }
+}
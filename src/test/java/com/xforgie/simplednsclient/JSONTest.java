@@ -0,0 +1,30 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Escapes strings for the JSON output.
+ *
+ */
+
+public class JSONTest {
+
+    @Test
+    public void plainValuesAreReturnedAsIs() {
+
+        String value = "www.example.test";
+        assertSame(value, JSON.escape(value));
+    }
+
+    @Test
+    public void quotesBackslashesAndControlCharactersAreEscaped() {
+
+        assertEquals("say \\\"hi\\\"", JSON.escape("say \"hi\""));
+        assertEquals("a\\\\b", JSON.escape("a\\b"));
+        assertEquals("line\\u000aend\\u001f", JSON.escape("line\nend\u001f"));
+    }
+}
@@ -0,0 +1,76 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import com.xforgie.simplednsclient.responseerrors.AuthoritativeNameErrorException;
+import com.xforgie.simplednsclient.responseerrors.NameserverFailureException;
+import com.xforgie.simplednsclient.responseerrors.ResponseException;
+
+/**
+ *
+ * Decodes hand-built responses, with and without the extended rcode of an OPT record.
+ *
+ */
+
+public class PacketHandlerTest {
+
+    @Test
+    public void headerRcodeWithoutOpt() {
+
+        ByteBuffer response = response(2, -1);
+
+        assertEquals(2, PacketHandler.getRCodeFromPacket(response));
+        assertThrows(NameserverFailureException.class, () -> PacketHandler.decodePacket(response));
+    }
+
+    @Test
+    public void extendedRcodeFromOpt() throws Exception {
+
+        // BADVERS: upper bits 1 in the OPT record, lower bits 0 in the header
+        ByteBuffer response = response(0, 1);
+
+        assertEquals(16, PacketHandler.getRCodeFromPacket(response));
+        assertEquals(0, response.position());
+
+        ResponseException e = assertThrows(ResponseException.class, () -> PacketHandler.decodePacket(response));
+        assertEquals(ResponseException.class, e.getClass());
+    }
+
+    @Test
+    public void optWithoutExtendedBitsKeepsHeaderRcode() {
+
+        ByteBuffer response = response(3, 0);
+
+        assertEquals(3, PacketHandler.getRCodeFromPacket(response));
+        AuthoritativeNameErrorException e = assertThrows(AuthoritativeNameErrorException.class,
+                () -> PacketHandler.decodePacket(response));
+        assertTrue(e.getPacket().hasEDNS());
+    }
+
+    // a response to an A query for example.test with rCode in its header and, unless
+    // extendedRCode is -1, an OPT record carrying extendedRCode
+    private static ByteBuffer response(int rCode, int extendedRCode) {
+
+        ByteBuffer packet = ByteBuffer.allocate(512);
+        packet.putShort((short) 1).putShort((short) (0x8400 | rCode));
+        packet.putShort((short) 1).putShort((short) 0).putShort((short) 0);
+        packet.putShort((short) (extendedRCode < 0 ? 0 : 1));
+
+        packet.put((byte) 7).put("example".getBytes()).put((byte) 4).put("test".getBytes()).put((byte) 0);
+        packet.putShort((short) RecordType.A.getCode()).putShort((short) 1);
+
+        if (extendedRCode >= 0) {
+            packet.put((byte) 0).putShort((short) RecordType.OPT.getCode()).putShort((short) 1232);
+            packet.putInt(extendedRCode << 24).putShort((short) 0);
+        }
+
+        packet.flip();
+        return packet;
+    }
+}
@@ -0,0 +1,117 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Reads hand-built packets, with compressed names and malformed ones.
+ *
+ */
+
+public class PacketReaderTest {
+
+    private final PacketReader reader = new PacketReader();
+
+    @Test
+    public void compressedNamesAreExpanded() {
+
+        ByteBuffer packet = header(1, 1);
+        // www.example.test at offset 12, with example.test at offset 16
+        putName(packet, "www", "example", "test");
+        packet.putShort((short) RecordType.A.getCode()).putShort((short) 1);
+
+        // a CNAME for the question name to cdn.example.test, both compressed
+        packet.putShort((short) 0xC00C);
+        packet.putShort((short) RecordType.CNAME.getCode()).putShort((short) 1).putInt(300);
+        packet.putShort((short) 6);
+        packet.put((byte) 3).put("cdn".getBytes()).putShort((short) 0xC010);
+        packet.flip();
+
+        reader.reset(packet);
+        assertEquals("www.example.test", reader.getQuestionName());
+        assertEquals(RecordType.A.getCode(), reader.getQuestionType());
+
+        assertTrue(reader.nextRecord());
+        assertEquals(PacketReader.Section.ANSWER, reader.getSection());
+        assertEquals("www.example.test", reader.getName());
+        assertEquals(RecordType.CNAME.getCode(), reader.getType());
+        assertEquals(300, reader.getTTL());
+        assertEquals("cdn.example.test", reader.getNameAt(reader.getRDataOffset()));
+        assertFalse(reader.nextRecord());
+
+        // the buffer itself is never moved
+        assertEquals(0, packet.position());
+    }
+
+    @Test
+    public void pointerLoopIsRejected() {
+
+        ByteBuffer packet = header(1, 0);
+        // a name that points at itself
+        packet.putShort((short) 0xC00C);
+        packet.putShort((short) RecordType.A.getCode()).putShort((short) 1);
+        packet.flip();
+
+        reader.reset(packet);
+        assertThrows(IndexOutOfBoundsException.class, reader::getQuestionName);
+    }
+
+    @Test
+    public void pointersBetweenTwoNamesAreRejected() {
+
+        ByteBuffer packet = header(1, 0);
+        // a label, then a pointer to offset 18, which points back to offset 12
+        packet.put((byte) 3).put("abc".getBytes()).putShort((short) 0xC012);
+        packet.putShort((short) 0xC00C);
+        packet.flip();
+
+        reader.reset(packet);
+        assertThrows(IndexOutOfBoundsException.class, reader::getQuestionName);
+    }
+
+    @Test
+    public void pointerPastTheEndIsRejected() {
+
+        ByteBuffer packet = header(1, 0);
+        packet.putShort((short) 0xC1FF);
+        packet.putShort((short) RecordType.A.getCode()).putShort((short) 1);
+        packet.flip();
+
+        reader.reset(packet);
+        assertThrows(IndexOutOfBoundsException.class, reader::getQuestionName);
+    }
+
+    @Test
+    public void recordRunningPastTheEndIsRejected() {
+
+        ByteBuffer packet = header(0, 1);
+        packet.put((byte) 0);
+        packet.putShort((short) RecordType.A.getCode()).putShort((short) 1).putInt(300);
+        // claims four bytes of data, but the packet ends here
+        packet.putShort((short) 4);
+        packet.flip();
+
+        reader.reset(packet);
+        assertThrows(IndexOutOfBoundsException.class, reader::nextRecord);
+    }
+
+    private static ByteBuffer header(int questions, int answers) {
+        ByteBuffer packet = ByteBuffer.allocate(512);
+        packet.putShort((short) 1).putShort((short) 0x8400);
+        packet.putShort((short) questions).putShort((short) answers).putShort((short) 0).putShort((short) 0);
+        return packet;
+    }
+
+    private static void putName(ByteBuffer packet, String... labels) {
+        for (String label : labels)
+            packet.put((byte) label.length()).put(label.getBytes());
+        packet.put((byte) 0);
+    }
+}
@@ -0,0 +1,92 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Encodes queries and matches responses to them.
+ *
+ */
+
+public class QueryEncoderTest {
+
+    private static final SearchNode NODE = new SearchNode("www.example.test", RecordType.A);
+
+    @Test
+    public void queryIsEncoded() {
+
+        ByteBuffer query = ByteBuffer.allocate(512);
+        int questionEnd = QueryEncoder.writeQuery(query, 0x1234, NODE);
+
+        assertEquals(QueryEncoder.HEADER_SIZE + 18 + 4, questionEnd);
+        assertEquals(questionEnd, query.position());
+        assertEquals(0x1234, PacketHandler.getIDFromPacket(query));
+
+        PacketReader reader = new PacketReader().reset((ByteBuffer) query.flip());
+        assertEquals(1, reader.getQdCount());
+        assertEquals("www.example.test", reader.getQuestionName());
+        assertEquals(RecordType.A.getCode(), reader.getQuestionType());
+        assertEquals(1, reader.getQuestionClass());
+    }
+
+    @Test
+    public void rewritingTheIdChangesNothingElse() {
+
+        ByteBuffer query = ByteBuffer.allocate(512);
+        int questionEnd = QueryEncoder.writeQuery(query, 1, NODE, QueryEncoder.MIN_UDP_PAYLOAD_SIZE);
+        byte[] before = Arrays.copyOf(query.array(), query.position());
+
+        QueryEncoder.rewriteID(query, 0xBEEF);
+        byte[] after = Arrays.copyOf(query.array(), query.position());
+
+        assertEquals(0xBEEF, PacketHandler.getIDFromPacket(query));
+        assertArrayEquals(Arrays.copyOfRange(before, 2, before.length), Arrays.copyOfRange(after, 2, after.length));
+        assertTrue(QueryEncoder.sameQuestion(query, questionEnd, query));
+    }
+
+    @Test
+    public void questionMatchIgnoresCaseOnly() {
+
+        ByteBuffer query = ByteBuffer.allocate(512);
+        int questionEnd = QueryEncoder.writeQuery(query, 1, NODE);
+
+        // the same question with different case, as with 0x20 randomization
+        ByteBuffer mixedCase = ByteBuffer.allocate(512);
+        QueryEncoder.writeQuery(mixedCase, 1, new SearchNode("WwW.ExAmPlE.TeSt", RecordType.A));
+        mixedCase.flip();
+        assertTrue(QueryEncoder.sameQuestion(query, questionEnd, mixedCase));
+
+        ByteBuffer otherType = ByteBuffer.allocate(512);
+        QueryEncoder.writeQuery(otherType, 1, new SearchNode("www.example.test", RecordType.AAAA));
+        otherType.flip();
+        assertFalse(QueryEncoder.sameQuestion(query, questionEnd, otherType));
+
+        ByteBuffer otherName = ByteBuffer.allocate(512);
+        QueryEncoder.writeQuery(otherName, 1, new SearchNode("www.example.tesu", RecordType.A));
+        otherName.flip();
+        assertFalse(QueryEncoder.sameQuestion(query, questionEnd, otherName));
+
+        // a response cut off inside the question
+        ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(mixedCase.array(), questionEnd - 1));
+        assertFalse(QueryEncoder.sameQuestion(query, questionEnd, truncated));
+    }
+
+    @Test
+    public void nonAsciiNamesAreRejected() {
+
+        ByteBuffer query = ByteBuffer.allocate(512);
+        assertThrows(IllegalArgumentException.class,
+                () -> QueryEncoder.writeQuery(query, 1, new SearchNode("b\u00fccher.test", RecordType.A)));
+        assertThrows(IllegalArgumentException.class,
+                () -> QueryEncoder.writeQuery(query, 1, new SearchNode("\u4f8b.test", RecordType.A)));
+    }
+}
@@ -0,0 +1,59 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.xforgie.simplednsclient.FakeNameserver.addressFor;
+import static com.xforgie.simplednsclient.FakeNameserver.serveUdp;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Runs the UDP engine against a FakeNameserver on the loopback interface.
+ *
+ */
+
+public class QueryEngineTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Test
+    public void failingSendDoesNotStallTheQueue() throws Exception {
+
+        try (DatagramSocket udp = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+                QueryEngine engine = new QueryEngine(QueryHandler.DEFAULT_UDP_PAYLOAD_SIZE)) {
+
+            serveUdp(udp, false);
+            engine.setQueueAll(true);
+
+            // the channel is not allowed to broadcast, so this send throws on every try
+            InetSocketAddress broadcast = new InetSocketAddress("255.255.255.255", 53);
+            long longTimeoutMillis = 60000;
+            CompletableFuture<ByteBuffer> failing = engine.query(broadcast,
+                    new SearchNode("broadcast.test", RecordType.A), longTimeoutMillis);
+            CompletableFuture<ByteBuffer> queued = engine.query((InetSocketAddress) udp.getLocalSocketAddress(),
+                    new SearchNode("queued.test", RecordType.A), longTimeoutMillis);
+
+            ByteBuffer reply = queued.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            byte[] address = new byte[4];
+            reply.position(reply.limit() - address.length);
+            reply.get(address);
+            assertArrayEquals(addressFor("queued"), address);
+
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> failing.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
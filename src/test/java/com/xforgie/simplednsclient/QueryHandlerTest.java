@@ -0,0 +1,94 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Caches negative answers from hand-built packets; every test uses names of its own, since
+ * the cache outlives them.
+ *
+ */
+
+public class QueryHandlerTest {
+
+    private final Cache cache = Cache.getCache();
+
+    @Test
+    public void negativeTtlIsTheLesserOfSoaTtlAndMinimum() {
+
+        SearchNode minimum = new SearchNode("a.minimum.neg.test", RecordType.A);
+        QueryHandler.cacheNegativeResponse(packet(soa("minimum.neg.test", 300, 60)), minimum, "neg.test", true);
+        assertTtl(60, cache.getNegativeAuthority(minimum));
+
+        SearchNode ttl = new SearchNode("a.ttl.neg.test", RecordType.A);
+        QueryHandler.cacheNegativeResponse(packet(soa("ttl.neg.test", 30, 3600)), ttl, "neg.test", false);
+        assertTtl(30, cache.getNegativeAuthority(ttl));
+        assertEquals(Resolution.Status.NODATA, cache.getNegativeResult(ttl));
+    }
+
+    @Test
+    public void nameErrorCoversEveryTypeAndNoDataOnlyItsOwn() {
+
+        SearchNode nameError = new SearchNode("nx.types.neg.test", RecordType.A);
+        QueryHandler.cacheNegativeResponse(packet(soa("types.neg.test", 300, 300)), nameError, "neg.test", true);
+        assertEquals(Resolution.Status.NXDOMAIN,
+                cache.getNegativeResult(new SearchNode("nx.types.neg.test", RecordType.MX)));
+
+        SearchNode noData = new SearchNode("nodata.types.neg.test", RecordType.AAAA);
+        QueryHandler.cacheNegativeResponse(packet(soa("types.neg.test", 300, 300)), noData, "neg.test", false);
+        assertEquals(Resolution.Status.NODATA, cache.getNegativeResult(noData));
+        assertNull(cache.getNegativeResult(new SearchNode("nodata.types.neg.test", RecordType.A)));
+    }
+
+    @Test
+    public void soaOutsideTheServersZoneIsIgnored() {
+
+        // the server is authoritative for other.test only
+        SearchNode node = new SearchNode("a.bailiwick.neg.test", RecordType.A);
+        QueryHandler.cacheNegativeResponse(packet(soa("bailiwick.neg.test", 300, 300)), node, "other.test", true);
+        assertNull(cache.getNegativeResult(node));
+    }
+
+    @Test
+    public void soaNotAboveTheNameIsIgnored() {
+
+        SearchNode node = new SearchNode("a.unrelated.neg.test", RecordType.A);
+        QueryHandler.cacheNegativeResponse(packet(soa("elsewhere.neg.test", 300, 300)), node, "neg.test", true);
+        assertNull(cache.getNegativeResult(node));
+    }
+
+    @Test
+    public void negativeAnswerIsCachedForTheEndOfTheCnameChain() {
+
+        SearchNode alias = new SearchNode("alias.chain.neg.test", RecordType.A);
+        DecodedPacket packet = packet(soa("chain.neg.test", 300, 300));
+        packet.setANRecords(new ResourceRecord[] {
+                new ResourceRecord("alias.chain.neg.test", RecordType.CNAME, 300, "target.chain.neg.test") });
+
+        QueryHandler.cacheNegativeResponse(packet, alias, "neg.test", true);
+        assertEquals(Resolution.Status.NXDOMAIN,
+                cache.getNegativeResult(new SearchNode("target.chain.neg.test", RecordType.A)));
+        assertNull(cache.getNegativeResult(alias));
+    }
+
+    private static ResourceRecord soa(String zone, long ttl, long minimum) {
+        return new ResourceRecord(zone, RecordType.SOA, ttl, "ns." + zone + " host." + zone + " 1 7200 900 1209600 " + minimum);
+    }
+
+    private static DecodedPacket packet(ResourceRecord soa) {
+        DecodedPacket packet = new DecodedPacket();
+        packet.setANRecords(new ResourceRecord[0]);
+        packet.setNSRecords(new ResourceRecord[] { soa });
+        packet.setARRecords(new ResourceRecord[0]);
+        return packet;
+    }
+
+    // the remaining TTL may have ticked down by a second
+    private static void assertTtl(long expected, ResourceRecord soa) {
+        assertTrue(soa.getTTL() <= expected && soa.getTTL() >= expected - 1, "TTL " + soa.getTTL());
+    }
+}
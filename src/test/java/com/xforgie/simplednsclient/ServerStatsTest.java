@@ -0,0 +1,65 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Exercises the shared server statistics directly, with addresses no other test uses.
+ *
+ */
+
+public class ServerStatsTest {
+
+    private final ServerStats serverStats = ServerStats.getServerStats();
+
+    @Test
+    public void leastRecentlyUsedServersAreForgotten() throws Exception {
+
+        InetAddress first = address(0);
+        InetAddress forwarder = address(0xFFFF);
+        serverStats.trackRTTHistograms(Collections.singleton(forwarder));
+        serverStats.recordTimeout(first);
+        long timeouts = serverStats.getTimeouts();
+
+        // the servers after it are used on a later tick of the coarse clock
+        Thread.sleep(50);
+
+        for (int i = 1; i <= ServerStats.MAX_SERVERS; i++)
+            serverStats.getEntry(address(i));
+
+        assertTrue(serverStats.getEntries().size() <= ServerStats.MAX_SERVERS);
+        assertTrue(serverStats.getEntries().stream().noneMatch(entry -> entry.getAddress().equals(first)));
+        assertTrue(serverStats.getEntries().stream().anyMatch(entry -> entry.getAddress().equals(forwarder)));
+
+        // the totals keep what the forgotten servers did
+        assertTrue(serverStats.getTimeouts() >= timeouts);
+    }
+
+    @Test
+    public void onlyTrackedServersHaveTheirOwnHistogram() throws Exception {
+
+        InetAddress tracked = address(0xFFFE);
+        InetAddress untracked = address(0xFFFD);
+        serverStats.trackRTTHistograms(Collections.singleton(tracked));
+        long recorded = serverStats.getRTTHistogram().getCount();
+
+        serverStats.recordResponse(tracked, 2_000_000);
+        serverStats.recordResponse(untracked, 3_000_000);
+
+        assertEquals(1, serverStats.getEntry(tracked).getRTTHistogram().getCount());
+        assertNull(serverStats.getEntry(untracked).getRTTHistogram());
+        assertTrue(serverStats.getEntry(untracked).isMeasured());
+        assertTrue(serverStats.getRTTHistogram().getCount() >= recorded + 2);
+    }
+
+    private static InetAddress address(int i) throws Exception {
+        return InetAddress.getByAddress(new byte[] { 10, (byte) 250, (byte) (i >> 8), (byte) i });
+    }
+}
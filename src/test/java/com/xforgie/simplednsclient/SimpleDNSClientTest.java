@@ -0,0 +1,123 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.xforgie.simplednsclient.FakeNameserver.addressFor;
+import static com.xforgie.simplednsclient.FakeNameserver.serveUdp;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Resolves names against a FakeNameserver on the loopback interface, which is the root and
+ * authoritative for everything.
+ *
+ */
+
+public class SimpleDNSClientTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private static DatagramSocket udp;
+    private static SimpleDNSClient client;
+
+    @BeforeAll
+    public static void startClient() throws Exception {
+
+        udp = new DatagramSocket(new InetSocketAddress(LOOPBACK, 0));
+        serveUdp(udp, false);
+
+        QueryHandler.setServerPort(udp.getLocalPort());
+        client = new SimpleDNSClient(LOOPBACK);
+        client.start();
+    }
+
+    @AfterAll
+    public static void stopClient() {
+        QueryHandler.closeSocket();
+        QueryHandler.setServerPort(QueryHandler.DEFAULT_DNS_PORT);
+        udp.close();
+    }
+
+    @Test
+    public void answerIsResolved() {
+
+        Resolution resolution = client.resolve("answered.test", RecordType.A);
+
+        assertEquals(Resolution.Status.NOERROR, resolution.getStatus());
+        assertArrayEquals(addressFor("answered"), resolution.getRecords().iterator().next().getInetResult().getAddress());
+    }
+
+    @Test
+    public void singleCachedResolutionDoesNotPrefetch() throws Exception {
+
+        // a CNAME to an address, both in their prefetch window from the start
+        Cache cache = Cache.getCache();
+        List<SearchNode> prefetched = new ArrayList<>();
+        cache.setPrefetchHandler(prefetched::add, 1.0);
+        try {
+            cache.addResourceRecord(new ResourceRecord("alias.prefetch.test", RecordType.CNAME, 300,
+                    "target.prefetch.test"));
+            cache.addResourceRecord(new ResourceRecord("target.prefetch.test", RecordType.A, 300,
+                    InetAddress.getByName("10.0.0.6")));
+
+            assertEquals(Resolution.Status.NOERROR, client.resolve("alias.prefetch.test", RecordType.A).getStatus());
+            assertTrue(prefetched.isEmpty());
+
+            client.resolve("alias.prefetch.test", RecordType.A);
+            assertEquals(2, prefetched.size());
+        } finally {
+            cache.setPrefetchHandler(null, 0);
+        }
+    }
+
+    @Test
+    public void expiredCnameChainIsServedStale() throws Exception {
+
+        Cache cache = Cache.getCache();
+        cache.addResourceRecord(new ResourceRecord("silentalias.test", RecordType.CNAME, 1, "silenttarget.test"));
+        cache.addResourceRecord(new ResourceRecord("silenttarget.test", RecordType.A, 1,
+                InetAddress.getByName("10.0.0.12")));
+        Thread.sleep(1100);
+
+        // the fresh lookup never gets an answer, so the stale chain is answered instead, when
+        // the lookup fails or the client response timeout of 1.8 s is up, whichever is first
+        long start = System.currentTimeMillis();
+        Resolution resolution = client.resolve("silentalias.test", RecordType.A);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue(elapsed < 3000, "answered after " + elapsed + "ms");
+        assertEquals(Resolution.Status.NOERROR, resolution.getStatus());
+        ResourceRecord record = resolution.getRecords().iterator().next();
+        assertEquals("silenttarget.test", record.getHostName());
+        assertEquals(SimpleDNSClient.STALE_ANSWER_TTL, record.getTTL());
+    }
+
+    @Test
+    public void uncachedNameErrorIsNotServerFailure() {
+
+        Resolution resolution = client.resolve("nxuncached.test", RecordType.A);
+
+        assertEquals(Resolution.Status.NXDOMAIN, resolution.getStatus());
+        assertNull(Cache.getCache().getNegativeResult(new SearchNode("nxuncached.test", RecordType.A)));
+    }
+
+    @Test
+    public void uncachedNoDataIsNotServerFailure() {
+
+        Resolution resolution = client.resolve("nodata.test", RecordType.AAAA);
+
+        assertEquals(Resolution.Status.NODATA, resolution.getStatus());
+        assertNull(Cache.getCache().getNegativeResult(new SearchNode("nodata.test", RecordType.AAAA)));
+    }
+}
@@ -0,0 +1,166 @@
+package com.xforgie.simplednsclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static com.xforgie.simplednsclient.FakeNameserver.addressFor;
+import static com.xforgie.simplednsclient.FakeNameserver.reply;
+import static com.xforgie.simplednsclient.FakeNameserver.serveUdp;
+import static com.xforgie.simplednsclient.FakeNameserver.startDaemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Runs the TCP path against a FakeNameserver on the loopback interface.
+ *
+ */
+
+public class TcpConnectionPoolTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Test
+    public void truncatedReplyIsRetriedOverTcp() throws Exception {
+
+        try (ServerSocket tcp = new ServerSocket(0, 50, LOOPBACK);
+                DatagramSocket udp = new DatagramSocket(new InetSocketAddress(LOOPBACK, tcp.getLocalPort()))) {
+
+            // every UDP reply is truncated, so the answer can only come over TCP
+            serveUdp(udp, true);
+            startDaemon(() -> serveInOrder(tcp.accept()));
+
+            QueryHandler.setServerPort(tcp.getLocalPort());
+            QueryHandler.openSocket();
+            try {
+                long tcpQueries = QueryHandler.getTcpQueries();
+                SearchNode node = new SearchNode("truncated.test", RecordType.A);
+
+                QueryHandler.sendQueryAndCacheResponse(Collections.singletonList(LOOPBACK), node, "",
+                        new RetryBudget(0));
+
+                Set<ResourceRecord> records = Cache.getCache().getResourceRecords(node);
+                assertEquals(1, records.size());
+                assertArrayEquals(addressFor("truncated"), records.iterator().next().getInetResult().getAddress());
+                assertEquals(tcpQueries + 1, QueryHandler.getTcpQueries());
+            } finally {
+                QueryHandler.closeSocket();
+                QueryHandler.setServerPort(QueryHandler.DEFAULT_DNS_PORT);
+            }
+        }
+    }
+
+    @Test
+    public void outOfOrderRepliesAreMatchedById() throws Exception {
+
+        try (ServerSocket tcp = new ServerSocket(0, 50, LOOPBACK)) {
+
+            // holds the first queries back and answers them last first
+            int pipelined = 3;
+            startDaemon(() -> {
+                try (Socket socket = tcp.accept()) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    List<byte[]> queries = new ArrayList<>();
+                    for (int i = 0; i < pipelined; i++)
+                        queries.add(readMessage(in));
+
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    for (int i = pipelined - 1; i >= 0; i--)
+                        writeMessage(out, reply(queries.get(i), false));
+
+                    // keeps the connection open until the pool closes it
+                    in.read();
+                }
+            });
+
+            TcpConnectionPool pool = new TcpConnectionPool(1, pipelined, 60000,
+                    QueryHandler.DEFAULT_UDP_PAYLOAD_SIZE);
+            try {
+                InetSocketAddress server = (InetSocketAddress) tcp.getLocalSocketAddress();
+                String[] names = { "a", "bb", "ccc" };
+
+                List<CompletableFuture<ByteBuffer>> replies = new ArrayList<>();
+                for (String name : names)
+                    replies.add(pool.query(server, new SearchNode(name + ".test", RecordType.A), TIMEOUT_MILLIS));
+
+                for (int i = 0; i < names.length; i++) {
+                    ByteBuffer reply = replies.get(i).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    byte[] address = new byte[4];
+                    reply.position(reply.limit() - address.length);
+                    reply.get(address);
+                    assertArrayEquals(addressFor(names[i]), address);
+                }
+
+                assertEquals(1, pool.getOpenConnections());
+            } finally {
+                pool.close();
+            }
+        }
+    }
+
+    @Test
+    public void idleConnectionsAreClosedAndForgotten() throws Exception {
+
+        try (ServerSocket tcp = new ServerSocket(0, 50, LOOPBACK)) {
+
+            startDaemon(() -> serveInOrder(tcp.accept()));
+
+            long idleTimeoutMillis = 200;
+            TcpConnectionPool pool = new TcpConnectionPool(1, 1, idleTimeoutMillis,
+                    QueryHandler.DEFAULT_UDP_PAYLOAD_SIZE);
+            try {
+                pool.query((InetSocketAddress) tcp.getLocalSocketAddress(),
+                        new SearchNode("idle.test", RecordType.A), TIMEOUT_MILLIS).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                assertEquals(1, pool.getOpenConnections());
+
+                long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                while (pool.getServers() > 0 && System.currentTimeMillis() < deadline)
+                    Thread.sleep(idleTimeoutMillis / 4);
+
+                assertEquals(0, pool.getOpenConnections());
+                assertEquals(0, pool.getServers());
+            } finally {
+                pool.close();
+            }
+        }
+    }
+
+    // answers each query on socket as it comes in, until the client closes it
+    private static void serveInOrder(Socket socket) throws IOException {
+
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            while (true)
+                writeMessage(out, reply(readMessage(in), false));
+        }
+    }
+
+    private static byte[] readMessage(DataInputStream in) throws IOException {
+        byte[] message = new byte[in.readUnsignedShort()];
+        in.readFully(message);
+        return message;
+    }
+
+    private static void writeMessage(DataOutputStream out, byte[] message) throws IOException {
+        out.writeShort(message.length);
+        out.write(message);
+        out.flush();
+    }
+}